@@ -0,0 +1,718 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+import fr.ecp.sio.appenginedemo.data.UsersRepository;
+import fr.ecp.sio.appenginedemo.gson.GsonFactory;
+import fr.ecp.sio.appenginedemo.model.BatchRequest;
+import fr.ecp.sio.appenginedemo.model.BatchResponse;
+import fr.ecp.sio.appenginedemo.model.Error;
+import fr.ecp.sio.appenginedemo.model.User;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A servlet to handle several requests of the API sent at once, on the exact path "/batch".
+ * When an application starts, it typically calls several endpoints one after the other (the user, his followed users, the timeline...):
+ * on a slow mobile network, each call costs a full round-trip.
+ * With this endpoint, the application sends all these requests in a single one, and gets all the responses at once.
+ * The requests are handled in this same process, by the same servlets as if they were sent alone.
+ */
+public class BatchServlet extends JsonServlet {
+
+    // The maximum number of requests sent at once
+    private static final int MAX_REQUESTS = 20;
+
+    // The maximum number of requests handled at the same time (App Engine limits the number of threads of a request)
+    private static final int MAX_THREADS = 10;
+
+    // The routes of the requests, as declared in web.xml and urlrewrite.xml
+    // The requests are not sent through the container, so we must find the servlet and the parameters of the path ourselves
+    // The admin endpoints are not there on purpose: they are protected by the container, not by our servlets
+    // These servlets are created here, not by the container: init() is never called and they have no ServletConfig,
+    // so they must not depend on them (none of our JsonServlet subclasses does, keep it that way)
+    private static final List<Route> ROUTES = Arrays.asList(
+            new Route("/users/(me|[0-9]+)/followed", new UsersServlet(), "followedBy&id=$1"),
+            new Route("/users/(me|[0-9]+)/followers", new UsersServlet(), "followerOf&id=$1"),
+            new Route("/users", new UsersServlet(), ""),
+            new Route("/user/(me|[0-9]+)/followed", new UserServlet(), "id=$1"),
+            new Route("/user/(me|[0-9]+)", new UserServlet(), "id=$1"),
+            new Route("/user", new UserServlet(), ""),
+            new Route("/message/([0-9]+)", new MessageServlet(), "id=$1"),
+            new Route("/messages", new MessagesServlet(), ""),
+            new Route("/timeline", new TimelineServlet(), ""),
+            new Route("/auth/token", new TokenServlet(), "")
+    );
+
+    // The upload of an avatar is not in the routes on purpose: its body is the raw image, which cannot be sent in a JSON batch
+    private static final Pattern AVATAR_PATH = Pattern.compile("/user/avatar");
+
+    // The base of the requests of the batch (see BatchHttpServletRequest): any method they don't override fails,
+    // instead of silently reading the batch request from several threads at the same time
+    private static final HttpServletRequest UNSUPPORTED_REQUEST = (HttpServletRequest) Proxy.newProxyInstance(
+            HttpServletRequest.class.getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class },
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    throw new UnsupportedOperationException(method.getName() + "() is not available in a batched request");
+                }
+            }
+    );
+
+    /**
+     * @api {post} /batch Send several requests at once
+     * @apiName PostBatch
+     * @apiGroup Batch
+     *
+     * @apiParam (Header parameter) {String} Authorization The token for user in form of "Bearer {token}", used for all the requests
+     * @apiParam (Body parameter) {String} - JSON array of requests (20 at most) in form {"method": "GET", "path": "/users/me/followed?limit=20", "body": {...}}
+     * (e.g. {"method": "POST", "path": "/user/123/followed?followed=true"} to follow a user)
+     *
+     * @apiSuccess {Array} - One response per request, in the same order, in form {"status": 200, "body": {...}}
+     * A request that cannot be batched gets the error unsupportedRequest (400) in its response: the upload of an avatar
+     * (PUT /user/avatar, its body is not JSON), and the streams (stream parameter, the responses are kept in memory).
+     *
+     * @apiSuccessExample Success-Response:
+     *     HTTP/1.1 200 OK
+     *     [
+     *          {
+     *              "status": 200,
+     *              "body": {
+     *                  "id": 5733953138851840,
+     *                  "login": "mylogin",
+     *                  "avatar": "avatar.png"
+     *              }
+     *          },
+     *          {
+     *              "status": 400,
+     *              "body": {
+     *                  "status": 400,
+     *                  "code": "userNotFound",
+     *                  "message": "The user you requested does not exist"
+     *              }
+     *          }
+     *     ]
+     *
+     * @apiError invalidAuthorization Invalid authorization header format
+     * @apiError invalidAuthorization Invalid token
+     * @apiError invalidRequest Invalid JSON body
+     * @apiError tooManyRequests No more than 20 requests can be sent at once
+     */
+    @Override
+    protected List<BatchResponse> doPost(HttpServletRequest req) throws ServletException, IOException, ApiException {
+
+        BatchRequest[] requests;
+        try {
+            requests = getJsonRequestBody(req, BatchRequest[].class);
+        } catch (JsonParseException e) {
+            requests = null;
+        }
+        if (requests == null) {
+            throw new ApiException(400, "invalidRequest", "Invalid JSON body");
+        }
+        if (requests.length > MAX_REQUESTS) {
+            throw new ApiException(400, "tooManyRequests", "No more than " + MAX_REQUESTS + " requests can be sent at once");
+        }
+
+        // The token is checked and the user is loaded once for all the requests
+        // The result is kept in an attribute of the request, and each of the requests below gets its own copy of the user
+        getAuthenticatedUser(req);
+
+        BatchResponse[] responses = new BatchResponse[requests.length];
+        ExecutorService executor = null;
+        try {
+            int i = 0;
+            while (i < requests.length) {
+                if (!isGet(requests[i])) {
+                    // A request that changes something is handled alone, after all the previous ones
+                    // (e.g. a message posted then the timeline), and before the next ones
+                    responses[i] = route(req, requests[i]).execute();
+                    refreshAuthenticatedUser(req);
+                    i++;
+                    continue;
+                }
+
+                // The GET requests that follow each other don't depend on each other: they are handled at the same time
+                int end = i;
+                while (end < requests.length && isGet(requests[end])) {
+                    end++;
+                }
+                if (end - i == 1) {
+                    responses[i] = route(req, requests[i]).execute();
+                } else {
+                    // The threads are request threads, as required by App Engine to call its services
+                    if (executor == null) {
+                        executor = Executors.newFixedThreadPool(MAX_THREADS, ThreadManager.currentRequestThreadFactory());
+                    }
+                    // The requests are prepared here, by the thread of the batch request, which is the only one to read it:
+                    // the threads only get their own request, that shares nothing with the others
+                    List<Future<BatchResponse>> futures = new ArrayList<>();
+                    for (int j = i; j < end; j++) {
+                        futures.add(executor.submit(new HandleCallable(route(req, requests[j]))));
+                    }
+                    for (int j = i; j < end; j++) {
+                        responses[j] = getResponse(futures.get(j - i));
+                    }
+                }
+                i = end;
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+
+        return Arrays.asList(responses);
+    }
+
+    // A request that changes something may have changed the authenticated user (e.g. POST /user/me),
+    // so he is loaded again for the next requests: they must see him as if they were sent after it
+    private static void refreshAuthenticatedUser(HttpServletRequest req) {
+        Object authenticated = req.getAttribute(AUTHENTICATED_USER_ATTRIBUTE);
+        if (authenticated instanceof User) {
+            User user = UsersRepository.getUser(((User) authenticated).id);
+            if (user != null) {
+                req.setAttribute(AUTHENTICATED_USER_ATTRIBUTE, user);
+            } else {
+                // The user has been deleted: the token of the next requests is checked again, and rejected
+                req.removeAttribute(AUTHENTICATED_USER_ATTRIBUTE);
+            }
+        }
+    }
+
+    private static boolean isGet(BatchRequest request) {
+        return request != null && "GET".equals(request.method);
+    }
+
+    private static BatchResponse getResponse(Future<BatchResponse> future) throws ServletException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new ServletException(e);
+        } catch (ExecutionException e) {
+            // execute() does not throw, except for a bug
+            throw new ServletException(e.getCause());
+        }
+    }
+
+    // Find the servlet of one of the requests, and prepare the request as seen by this servlet
+    // All the failures are given in the response, so a failed request does not fail the others
+    private static Call route(HttpServletRequest req, BatchRequest request) {
+        if (request == null || request.path == null || request.method == null) {
+            return new Call(error(400, "invalidRequest", "The method and the path of the request are required"));
+        }
+        if (!Arrays.asList("GET", "POST", "PUT", "DELETE").contains(request.method)) {
+            return new Call(error(405, "methodNotAllowed", "The method " + request.method + " is not supported"));
+        }
+
+        // Find the servlet of the path, and the parameters given by the path itself (e.g. the id of /user/123)
+        int queryIndex = request.path.indexOf('?');
+        String path = queryIndex >= 0 ? request.path.substring(0, queryIndex) : request.path;
+        String query = queryIndex >= 0 ? request.path.substring(queryIndex + 1) : null;
+        if (AVATAR_PATH.matcher(path).matches()) {
+            return new Call(error(400, "unsupportedRequest", "An avatar cannot be uploaded in a batch, use PUT /user/avatar"));
+        }
+        for (Route route : ROUTES) {
+            Matcher m = route.pattern.matcher(path);
+            if (m.matches()) {
+                Map<String, String[]> parameters = new LinkedHashMap<>();
+                try {
+                    addParameters(parameters, m.replaceFirst(route.parameters));
+                    addParameters(parameters, query);
+                } catch (IllegalArgumentException e) {
+                    return new Call(error(400, "invalidRequest", "Invalid query string"));
+                }
+                // The response of each request is kept in memory until the batch response is written:
+                // a stream, which may be very long and is meant to be written while it is read, is not accepted
+                String[] stream = parameters.get("stream");
+                if (stream != null && Boolean.parseBoolean(stream[0])) {
+                    return new Call(error(400, "unsupportedRequest", "A stream cannot be requested in a batch, use the pagination"));
+                }
+                return new Call(route.servlet, new BatchHttpServletRequest(req, request, parameters));
+            }
+        }
+        return new Call(error(404, "notFound", "No endpoint for " + path));
+    }
+
+    private static BatchResponse error(int status, String code, String message) {
+        Error error = new Error();
+        error.status = status;
+        error.code = code;
+        error.message = message;
+        return new BatchResponse(status, GsonFactory.getGson().toJsonTree(error));
+    }
+
+    // Parse a query string like "limit=20&continuationToken=abc" (a parameter without value is an empty string)
+    private static void addParameters(Map<String, String[]> parameters, String query) {
+        if (query == null || query.isEmpty()) {
+            return;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equalsIndex = pair.indexOf('=');
+            String name = decode(equalsIndex >= 0 ? pair.substring(0, equalsIndex) : pair);
+            String value = equalsIndex >= 0 ? decode(pair.substring(equalsIndex + 1)) : "";
+            String[] values = parameters.get(name);
+            if (values == null) {
+                parameters.put(name, new String[] { value });
+            } else {
+                values = Arrays.copyOf(values, values.length + 1);
+                values[values.length - 1] = value;
+                parameters.put(name, values);
+            }
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Cannot happen, UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // A path of the API, with its servlet and the parameters the URL rewriting would add
+    private static class Route {
+
+        private final Pattern pattern;
+        private final HttpServlet servlet;
+        private final String parameters;
+
+        private Route(String regex, HttpServlet servlet, String parameters) {
+            this.pattern = Pattern.compile(regex);
+            this.servlet = servlet;
+            this.parameters = parameters;
+        }
+
+    }
+
+    // One of the requests, ready to be handled by its servlet, or the error that prevents it
+    private static class Call {
+
+        private final HttpServlet mServlet;
+        private final BatchHttpServletRequest mRequest;
+        private final BatchResponse mError;
+
+        private Call(HttpServlet servlet, BatchHttpServletRequest request) {
+            mServlet = servlet;
+            mRequest = request;
+            mError = null;
+        }
+
+        private Call(BatchResponse error) {
+            mServlet = null;
+            mRequest = null;
+            mError = error;
+        }
+
+        // Handle the request with its servlet, and get its response as if it was sent alone
+        private BatchResponse execute() {
+            if (mError != null) {
+                return mError;
+            }
+            BatchHttpServletResponse response = new BatchHttpServletResponse();
+            try {
+                mServlet.service(mRequest, response);
+            } catch (ServletException | IOException | RuntimeException e) {
+                // Same as if the request was sent alone: the container would have sent a 500 error
+                return error(500, "internalError", "The request failed");
+            }
+            String body = response.mBody.toString();
+            JsonElement json;
+            try {
+                json = new JsonParser().parse(body);
+            } catch (JsonParseException e) {
+                return error(500, "internalError", "The request failed");
+            }
+            return new BatchResponse(response.mStatus, json);
+        }
+
+    }
+
+    // Handle one of the GET requests in a thread of its own
+    private static class HandleCallable implements Callable<BatchResponse> {
+
+        private final Call mCall;
+
+        private HandleCallable(Call call) {
+            mCall = call;
+        }
+
+        @Override
+        public BatchResponse call() {
+            // The ObjectifyFilter only prepares the thread of the request: this thread needs its own Objectify context
+            Closeable session = ObjectifyService.begin();
+            try {
+                return mCall.execute();
+            } finally {
+                session.close();
+            }
+        }
+
+    }
+
+    // One of the requests, as seen by its servlet
+    // Everything it gives is copied when it is created, by the thread of the batch request: the headers (Authorization...)
+    // are those of the batch request, the rest is given by the BatchRequest. It never reads the batch request afterwards,
+    // as the requests handled at the same time would read it together: any other method fails (see UNSUPPORTED_REQUEST)
+    private static class BatchHttpServletRequest extends HttpServletRequestWrapper {
+
+        private final BatchRequest mRequest;
+        private final Map<String, String[]> mParameters;
+        private final byte[] mBody;
+
+        // The names of the headers are not case-sensitive
+        private final Map<String, List<String>> mHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        // Each request has its own attributes, so the requests handled at the same time don't share any
+        private final Map<String, Object> mAttributes = new HashMap<>();
+
+        private BatchHttpServletRequest(HttpServletRequest parent, BatchRequest request, Map<String, String[]> parameters) {
+            super(UNSUPPORTED_REQUEST);
+            mRequest = request;
+            mParameters = parameters;
+            mBody = request.body != null ? request.body.toString().getBytes(StandardCharsets.UTF_8) : new byte[0];
+            Enumeration<?> names = parent.getHeaderNames();
+            while (names.hasMoreElements()) {
+                String name = (String) names.nextElement();
+                mHeaders.put(name, toList(parent.getHeaders(name)));
+            }
+            // The user authenticated by the batch request: the servlets don't check the token again
+            // The servlets may modify the user they get (e.g. UserServlet.doPost()), so it is never shared between the requests:
+            // each one gets its own copy (null if the token must be checked again, see refreshAuthenticatedUser())
+            Object authenticated = parent.getAttribute(AUTHENTICATED_USER_ATTRIBUTE);
+            if (authenticated != null) {
+                mAttributes.put(
+                        AUTHENTICATED_USER_ATTRIBUTE,
+                        authenticated instanceof User ? UsersRepository.copyUser((User) authenticated) : authenticated
+                );
+            }
+        }
+
+        private static List<String> toList(Enumeration<?> values) {
+            List<String> list = new ArrayList<>();
+            while (values != null && values.hasMoreElements()) {
+                list.add((String) values.nextElement());
+            }
+            return list;
+        }
+
+        @Override
+        public String getMethod() {
+            return mRequest.method;
+        }
+
+        @Override
+        public String getProtocol() {
+            return "HTTP/1.1";
+        }
+
+        @Override
+        public String getQueryString() {
+            int queryIndex = mRequest.path.indexOf('?');
+            return queryIndex >= 0 ? mRequest.path.substring(queryIndex + 1) : null;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            List<String> values = mHeaders.get(name);
+            return values != null && !values.isEmpty() ? values.get(0) : null;
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            List<String> values = mHeaders.get(name);
+            return Collections.enumeration(values != null ? values : Collections.<String>emptyList());
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            return Collections.enumeration(mHeaders.keySet());
+        }
+
+        @Override
+        public String getParameter(String name) {
+            String[] values = mParameters.get(name);
+            return values != null ? values[0] : null;
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            return mParameters.get(name);
+        }
+
+        @Override
+        public Map<String, String[]> getParameterMap() {
+            return Collections.unmodifiableMap(mParameters);
+        }
+
+        @Override
+        public Enumeration<String> getParameterNames() {
+            return Collections.enumeration(mParameters.keySet());
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/json";
+        }
+
+        @Override
+        public int getContentLength() {
+            return mBody.length;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return "UTF-8";
+        }
+
+        @Override
+        public void setCharacterEncoding(String env) {
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            final ByteArrayInputStream stream = new ByteArrayInputStream(mBody);
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return stream.read();
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(mBody), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return mAttributes.get(name);
+        }
+
+        @Override
+        public Enumeration<String> getAttributeNames() {
+            return Collections.enumeration(mAttributes.keySet());
+        }
+
+        @Override
+        public void setAttribute(String name, Object o) {
+            mAttributes.put(name, o);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            mAttributes.remove(name);
+        }
+
+    }
+
+    // The response of one of the requests: it is kept in memory, then written in the batch response
+    // It is not a wrapper of the actual response, which may be used by other threads at the same time
+    // Our servlets only set the status and write the body, the rest is ignored
+    private static class BatchHttpServletResponse implements HttpServletResponse {
+
+        private int mStatus = SC_OK;
+        private final StringWriter mBody = new StringWriter();
+        private final PrintWriter mWriter = new PrintWriter(mBody);
+
+        @Override
+        public void setStatus(int sc) {
+            mStatus = sc;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int sc, String sm) {
+            mStatus = sc;
+        }
+
+        @Override
+        public void sendError(int sc) {
+            mStatus = sc;
+        }
+
+        @Override
+        public void sendError(int sc, String msg) {
+            mStatus = sc;
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            return mWriter;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            throw new IllegalStateException("The response of a batched request must be written with getWriter()");
+        }
+
+        @Override
+        public void flushBuffer() {
+            mWriter.flush();
+        }
+
+        @Override
+        public void sendRedirect(String location) {
+            mStatus = SC_FOUND;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return "UTF-8";
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/json";
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+
+        @Override
+        public void resetBuffer() {
+            mBody.getBuffer().setLength(0);
+        }
+
+        @Override
+        public void reset() {
+            resetBuffer();
+            mStatus = SC_OK;
+        }
+
+        @Override
+        public int getBufferSize() {
+            return 0;
+        }
+
+        @Override
+        public Locale getLocale() {
+            return Locale.ROOT;
+        }
+
+        @Override
+        public boolean containsHeader(String name) {
+            return false;
+        }
+
+        @Override
+        public String encodeURL(String url) {
+            return url;
+        }
+
+        @Override
+        public String encodeRedirectURL(String url) {
+            return url;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public String encodeUrl(String url) {
+            return url;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public String encodeRedirectUrl(String url) {
+            return url;
+        }
+
+        @Override
+        public void setContentType(String type) {
+        }
+
+        @Override
+        public void setCharacterEncoding(String charset) {
+        }
+
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setBufferSize(int size) {
+        }
+
+        @Override
+        public void setLocale(Locale loc) {
+        }
+
+        @Override
+        public void addCookie(Cookie cookie) {
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+        }
+
+    }
+
+}
@@ -1,9 +1,13 @@
 package fr.ecp.sio.appenginedemo.api;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import fr.ecp.sio.appenginedemo.data.ResultStream;
 import fr.ecp.sio.appenginedemo.data.UsersRepository;
 import fr.ecp.sio.appenginedemo.gson.GsonFactory;
+import fr.ecp.sio.appenginedemo.model.Error;
 import fr.ecp.sio.appenginedemo.model.User;
 import fr.ecp.sio.appenginedemo.utils.TokenUtils;
 import fr.ecp.sio.appenginedemo.utils.ValidationUtils;
@@ -16,6 +20,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.SignatureException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -29,10 +34,21 @@ import java.util.regex.Pattern;
  */
 public class JsonServlet extends HttpServlet {
 
+    private static final Logger LOGGER = Logger.getLogger(JsonServlet.class.getSimpleName());
+
     // A constant Pattern, a regex class used to validate and parse the authorization header.
     // The Pattern is built from the regex string using the static method compile(), then it is ready to be used.
     protected static final Pattern AUTHORIZATION_PATTERN = Pattern.compile("Bearer (.+)");
 
+    // The name of the request attribute where the authenticated user is kept (see getAuthenticatedUser())
+    protected static final String AUTHENTICATED_USER_ATTRIBUTE = "fr.ecp.sio.appenginedemo.authenticatedUser";
+
+    // The value of this attribute when the request has no authorization header
+    private static final Object NO_AUTHENTICATED_USER = new Object();
+
+    // The number of elements of a streamed response written between two flushes of the output
+    private static final int STREAM_FLUSH_SIZE = 100;
+
     // All servlets behave the same: they receive request (req) and are supposed to write to the response (resp).
     // Note that the method does not return the response, instead it can write to (like a stream).
     // We override this default behaviour to handle the writing of the response as JSON.
@@ -118,15 +134,90 @@ public class JsonServlet extends HttpServlet {
         // HttpServletResponse has methods to write some headers (here, "Content-Type")
         resp.setContentType("application/json");
         // After the headers are written, we can go for the response body
-        // We rely on the Gson library, giving it the object and a Writer opened on the response OutputStream
-        GsonFactory.getGson().toJson(response, resp.getWriter());
+        if (response instanceof ResultStream) {
+            // A stream is written element by element, while it is read (see sendStreamedResponse)
+            sendStreamedResponse((ResultStream<?>) response, resp);
+        } else {
+            // We rely on the Gson library, giving it the object and a Writer opened on the response OutputStream
+            GsonFactory.getGson().toJson(response, resp.getWriter());
+        }
+    }
 
-        Logger.getLogger(JsonServlet.class.getSimpleName()).info("Logging test");
+    // A sub-servlet can return a ResultStream instead of a List, typically when the elements are read from a datastore query by batches.
+    // Then the elements are written to the client as soon as they are read: the whole list is never in memory,
+    // and the client starts receiving the response before the last element is read.
+    // The response has the same form as a page: {"messages": [...], "continuationToken": "..."}
+    // The token is written after the list, once it is known: a stream that stopped at its maximum size is never taken for the whole list.
+    // The status is sent with the first flush, so an error while reading the stream cannot be a status anymore:
+    // the list is closed and followed by an "error" field instead of the token, so the client never takes a cut-off list for a complete one.
+    private void sendStreamedResponse(ResultStream<?> stream, HttpServletResponse resp) throws IOException {
+        Gson gson = GsonFactory.getGson();
+        JsonWriter writer = new JsonWriter(resp.getWriter());
+        writer.beginObject();
+        writer.name(stream.getName());
+        writer.beginArray();
+        int count = 0;
+        while (true) {
+            // The datastore is only called while reading the stream, an element is always written as a whole
+            Object element;
+            try {
+                if (!stream.hasNext()) {
+                    break;
+                }
+                element = stream.next();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Stream interrupted after " + count + " elements", e);
+                Error error = new Error();
+                error.status = 503;
+                error.code = "streamInterrupted";
+                error.message = "The stream was interrupted, the list is incomplete";
+                // Nothing has been sent yet if the error happened before the first flush
+                if (!resp.isCommitted()) {
+                    resp.setStatus(error.status);
+                }
+                writer.endArray();
+                writer.name("error");
+                gson.toJson(error, Error.class, writer);
+                writer.endObject();
+                writer.flush();
+                return;
+            }
+            if (element == null) {
+                writer.nullValue();
+            } else {
+                gson.toJson(element, element.getClass(), writer);
+            }
+            // Push what we have written so far to the client, roughly after each batch read from the datastore
+            if (++count % STREAM_FLUSH_SIZE == 0) {
+                writer.flush();
+                resp.flushBuffer();
+            }
+        }
+        writer.endArray();
+        String continuationToken = stream.getContinuationToken();
+        if (continuationToken != null) {
+            writer.name("continuationToken").value(continuationToken);
+        }
+        writer.endObject();
+        writer.flush();
     }
 
     // This method can be used by our sub-servlets to get the User sending the request
-    // We parse the response header, check it against our repository and return it
+    // The result is kept as an attribute of the request: the token is checked and the user is loaded only once per request,
+    // however many times the method is called while handling it
     protected static User getAuthenticatedUser(HttpServletRequest req) throws ApiException {
+        Object authenticated = req.getAttribute(AUTHENTICATED_USER_ATTRIBUTE);
+        if (authenticated == null) {
+            User user = loadAuthenticatedUser(req);
+            // A request attribute cannot be null, so we use a marker for requests without authorization header
+            req.setAttribute(AUTHENTICATED_USER_ATTRIBUTE, user != null ? user : NO_AUTHENTICATED_USER);
+            return user;
+        }
+        return authenticated instanceof User ? (User) authenticated : null;
+    }
+
+    // We parse the response header, check it against our repository and return it
+    private static User loadAuthenticatedUser(HttpServletRequest req) throws ApiException {
         // Client applications are supposed to send their token in a "Authorization" header
         String auth = req.getHeader("Authorization");
 
@@ -218,6 +309,47 @@ public class JsonServlet extends HttpServlet {
         return (req.getParameter(parameterName) != null);
     }
 
+    // Hide the private information of a user before sending it to the client
+    // The password hash is never sent, the email is only sent to the user himself
+    protected static void hidePrivateFields(User user, User authUser) {
+        user.password = "*";
+        if (authUser == null || user.id != authUser.id) {
+            user.email = "*";
+        }
+    }
+
+    // Hide the private fields of the users of a stream, as they are written
+    protected static ResultStream<User> hidePrivateFields(final ResultStream<User> users, final User authUser) {
+        return new ResultStream<User>() {
+            @Override
+            public String getName() {
+                return users.getName();
+            }
+
+            @Override
+            public String getContinuationToken() {
+                return users.getContinuationToken();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return users.hasNext();
+            }
+
+            @Override
+            public User next() {
+                User user = users.next();
+                hidePrivateFields(user, authUser);
+                return user;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     protected static String generateUserPassword(User user) {
         return DigestUtils.sha256Hex(user.password + user.id);
     }
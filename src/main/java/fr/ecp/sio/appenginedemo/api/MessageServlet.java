@@ -2,6 +2,8 @@ package fr.ecp.sio.appenginedemo.api;
 
 import fr.ecp.sio.appenginedemo.data.MessagesRepository;
 import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.utils.ValidationUtils;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -32,10 +34,7 @@ public class MessageServlet extends JsonServlet {
      *          "user": {
      *              "id": 1,
      *              "login": "user1",
-     *              "avatar": "http://storage.googleapis.com/federatedbirds-storage/avatar-1.jpg",
-     *              "coverPicture": "",
-     *              "email": "user1@yopmail.com",
-     *              "password": "0b14d501a594442a01c6859541bcb3e8164d183d32937b851835442f69d5c94e"
+     *              "avatar": "http://storage.googleapis.com/federatedbirds-storage/avatar-1.jpg"
      *          }
      *     }
      *
@@ -92,14 +91,14 @@ public class MessageServlet extends JsonServlet {
      *          "user": {
      *              "id": 1,
      *              "login": "user1",
-     *              "avatar": "http://storage.googleapis.com/federatedbirds-storage/avatar-1.jpg",
-     *              "coverPicture": "",
-     *              "email": "user1@yopmail.com",
-     *              "password": "0b14d501a594442a01c6859541bcb3e8164d183d32937b851835442f69d5c94e"
+     *              "avatar": "http://storage.googleapis.com/federatedbirds-storage/avatar-1.jpg"
      *          }
      *     }
      *
      * @apiError unauthorizedOperation You cannot edit a message which is not yours
+     * @apiError messageNotFound The message with ID {id} does not exist
+     * @apiError invalidMessage The text of the message is missing
+     * @apiError invalidAuthorization Missing authorization header
      * @apiError invalidAuthorization Invalid authorization header format
      * @apiError invalidAuthorization Invalid token
      *
@@ -117,17 +116,34 @@ public class MessageServlet extends JsonServlet {
         // (OK) TODO: Get the message as below
         // (OK) TODO: Apply the changes
         // (OK) TODO: Return the modified message
+        Long messageId = getLongParameter(req, "id");
         Message messageModified = getJsonRequestBody(req, Message.class);
 
-        // We check that the message is owned by the authenticated user
-        if(messageModified.user.get().id != getAuthenticatedUser(req).id) {
+        User authUser = getAuthenticatedUser(req);
+        if (authUser == null) {
+            throw new ApiException(401, "invalidAuthorization", "Missing authorization header");
+        }
+
+        // The owner is checked on the stored message: the author sent in the body is never trusted
+        Message stored = MessagesRepository.getMessage(messageId);
+        if(stored == null) {
+            throw new ApiException(404, "messageNotFound", "The message with ID " + messageId + " does not exist");
+        }
+        // The id of the author is part of the reference, no need to load the user
+        if(stored.user.getKey().getId() != authUser.id) {
             throw new ApiException(400, "unauthorizedOperation", "You cannot edit a message which is not yours");
         }
 
-        // The insert method either adds the new message or modify it if existing
-        MessagesRepository.insertMessage(messageModified);
+        // Only the text can be edited: the author, the date and the id are kept as stored
+        if(!ValidationUtils.validateMessage(messageModified)) {
+            throw new ApiException(400, "invalidMessage", MessagesServlet.MISSING_TEXT);
+        }
+        Message updated = MessagesRepository.updateText(messageId, messageModified.text);
+        if(updated == null) {
+            throw new ApiException(404, "messageNotFound", "The message with ID " + messageId + " does not exist");
+        }
 
-        return messageModified;
+        return updated;
     }
 
     /**
@@ -166,7 +182,8 @@ public class MessageServlet extends JsonServlet {
                 getLongParameter(req, "id")
         );
 
-        if(message.user.get().id != getAuthenticatedUser(req).id) {
+        // The id of the author is part of the reference, no need to load the user
+        if(message.user.getKey().getId() != getAuthenticatedUser(req).id) {
             throw new ApiException(400, "unauthorizedOperation", "You cannot delete a message which is not yours");
         }
 
@@ -1,10 +1,23 @@
 package fr.ecp.sio.appenginedemo.api;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Ref;
+import com.googlecode.objectify.Result;
+import fr.ecp.sio.appenginedemo.data.DataException;
 import fr.ecp.sio.appenginedemo.data.MessagesRepository;
 import fr.ecp.sio.appenginedemo.data.UsersRepository;
+import fr.ecp.sio.appenginedemo.gson.GsonFactory;
+import fr.ecp.sio.appenginedemo.model.AuthorSummary;
+import fr.ecp.sio.appenginedemo.model.Error;
 import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.MessagePostResult;
 import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.tasks.FanOutTask;
+import fr.ecp.sio.appenginedemo.utils.ValidationUtils;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -12,6 +25,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A servlet to handle all the requests on a list of messages
@@ -19,43 +33,51 @@ import java.util.List;
  */
 public class MessagesServlet extends JsonServlet {
 
+    // The maximum number of messages posted at once (the datastore writes at most 500 entities in a single batch)
+    private static final int MAX_POSTED_MESSAGES = 500;
+
+    // The error message of a message rejected by ValidationUtils.validateMessage() (also used when a message is edited)
+    static final String MISSING_TEXT = "The text of the message is missing";
+
     /**
      * @api {get} /messages List of messages
      * @apiName GetMessages
      * @apiGroup Message
      *
+     * @apiParam (Header parameter) {String} Authorization The token for user in form of "Bearer {token}"
      * @apiParam (Url parameter) {Number} [user] Retrieve the messages of given user.
+     * @apiParam (Url parameter) {Number} [limit] Maximum number of messages retrieved per request (for pagination)
+     * @apiParam (Url parameter) {String} [continuationToken] Token to get the next page (for pagination)
+     * @apiParam (Url parameter) {Boolean} [stream] If true, the messages are written while they are read, 5000 at most: the continuationToken, written after them, streams the next ones. If the stream is interrupted, the messages are followed by an error instead.
      *
-     * @apiSuccess {Array} messages List of messages that the user can see.
+     * @apiSuccess {Array} messages List of messages that the user can see, most recent first.
+     * @apiSuccess {String} continuationToken Token to get the next page, absent if this is the last page.
      *
+     * @apiError invalidAuthorization Missing authorization header
      * @apiError invalidAuthorization Invalid authorization header format
      * @apiError invalidAuthorization Invalid token
      * @apiError userNotFound The user you requested does not exist
      * @apiError unauthorizedMessages You can see only your messages or the messages of followed users
+     * @apiError invalidContinuationToken Invalid continuation token
+     * @apiError streamInterrupted The stream was interrupted, the list is incomplete (with stream only, in the "error" field after the messages)
      *
      * @apiSuccessExample Success-Response:
      *     HTTP/1.1 200 OK
      */
     // A GET request should return a list of messages
     @Override
-    protected List<Message> doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
+    protected Object doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
         // (OK) TODO: filter the messages that the user can see (security!)
-        // TODO: filter the list based on some parameters (order, limit, scope...)
+        // (OK) TODO: filter the list based on some parameters (order, limit, scope...)
         // (OK) TODO: e.g. add a parameter to get the messages of a user given its id (i.e. /messages?user=256439)
 
         User requestedUser;
         User authUser = getAuthenticatedUser(req);
-        List<Message> allMessages = MessagesRepository.getMessages();
-        List<Message> filteredMessages = new ArrayList<>();
+        if (authUser == null) {
+            throw new ApiException(401, "invalidAuthorization", "Missing authorization header");
+        }
 
         // We assume that a user can see his own messages only or the messages of the followed users.
-        //
-        // For performance and memory consumption reasons, this kind of filtering
-        // should be refactored later on to be implemented in the data layer.
-        //
-        // As of now we are not supposed to modify the data layer so we implemented
-        // at servlet level by going through all the user messages.
-
         if(hasParameter(req, "user")) {
             requestedUser = UsersRepository.getUser(getLongParameter(req, "user"));
 
@@ -64,12 +86,9 @@ public class MessagesServlet extends JsonServlet {
             }
 
             // We check if the requested user is followed by the authenticated user
-            boolean isFollowedByAuthUser = false;
-            for(User userFollowed: UsersRepository.getUserFollowed(authUser.id, null, null).users) {
-                if(userFollowed.id == requestedUser.id) {
-                    isFollowedByAuthUser = true;
-                }
-            }
+            // This is a single get by key on the relationship between both users
+            boolean isFollowedByAuthUser = requestedUser.id == authUser.id
+                    || UsersRepository.isUserFollowed(authUser.id, requestedUser.id);
 
             if(! isFollowedByAuthUser) {
                 throw new ApiException(401, "unauthorizedMessages", "You can see only your messages or the messages of followed users");
@@ -78,13 +97,30 @@ public class MessagesServlet extends JsonServlet {
             requestedUser = authUser;
         }
 
-        for (Message message : allMessages) {
-            if(message.user.get().id == requestedUser.id) {
-                filteredMessages.add(message);
+        try {
+            // GET /messages?stream=true
+            // The whole list is returned as a stream: the JsonServlet writes the messages while they are read by batches
+            if(getBooleanParameter(req, "stream")) {
+                return MessagesRepository.streamMessagesByUser(
+                        requestedUser.id,
+                        getStringParameter(req, "continuationToken")
+                );
             }
-        }
 
-        return filteredMessages;
+            // The filtering by author, the ordering and the pagination are done by the datastore using an index
+            // => we only read the messages of the requested page
+            return MessagesRepository.getMessagesByUser(
+                    requestedUser.id,
+                    getIntegerParameter(req, "limit"),
+                    getStringParameter(req, "continuationToken")
+            );
+        } catch (DataException e) {
+            throw new ApiException(
+                    e.getError().status,
+                    e.getError().code,
+                    e.getError().message
+            );
+        }
     }
 
     /**
@@ -93,7 +129,7 @@ public class MessagesServlet extends JsonServlet {
      * @apiGroup Message
      *
      * @apiParam (Header parameter) {String} Authorization The token for user in form of "Bearer {token}"
-     * @apiParam (Body parameter) {String} - JSON representation of the message in form {"text": "My message..."}
+     * @apiParam (Body parameter) {String} - JSON representation of the message in form {"text": "My message..."}, or an array of such messages (500 at most)
      *
      * @apiSuccess {String} id ID of the created message.
      * @apiSuccess {String} text Text of the created message.
@@ -108,15 +144,18 @@ public class MessagesServlet extends JsonServlet {
      *          "user": {
      *              "id": 1,
      *              "login": "user1",
-     *              "avatar": "http://storage.googleapis.com/federatedbirds-storage/avatar-1.jpg",
-     *              "coverPicture": "",
-     *              "email": "user1@yopmail.com",
-     *              "password": "0b14d501a594442a01c6859541bcb3e8164d183d32937b851835442f69d5c94e"
+     *              "avatar": "http://storage.googleapis.com/federatedbirds-storage/avatar-1.jpg"
      *          }
      *     }
      *
+     * @apiSuccess (Array body) {Array} - One result per posted message, in the same order, with either "message" (the created message) or "error".
+     *
+     * @apiError invalidAuthorization Missing authorization header
      * @apiError invalidAuthorization Invalid authorization header format
      * @apiError invalidAuthorization Invalid token
+     * @apiError invalidRequest Invalid JSON body
+     * @apiError invalidMessage The text of the message is missing (for a single message, in the result of each message for an array)
+     * @apiError tooManyMessages No more than 500 messages can be posted at once
      *
      * @apiErrorExample Error-Response:
      *     HTTP/1.1 401 Unauthorized
@@ -128,27 +167,118 @@ public class MessagesServlet extends JsonServlet {
      */
     // A POST request on a collection endpoint should create an entry and return it
     @Override
-    protected Message doPost(HttpServletRequest req) throws ServletException, IOException, ApiException {
+    protected Object doPost(HttpServletRequest req) throws ServletException, IOException, ApiException {
+        User authUser = getAuthenticatedUser(req);
+        if (authUser == null) {
+            throw new ApiException(401, "invalidAuthorization", "Missing authorization header");
+        }
 
-        // The request should be a JSON object describing a new message
-        Message message = getJsonRequestBody(req, Message.class);
+        // The request should be a JSON object describing a new message, or an array of messages
+        JsonElement body;
+        try {
+            body = new JsonParser().parse(req.getReader());
+        } catch (JsonParseException e) {
+            throw new ApiException(400, "invalidRequest", "Invalid JSON body");
+        }
+        if (body.isJsonArray()) {
+            return postMessages(authUser, body.getAsJsonArray());
+        }
+        Message message = body.isJsonObject() ? GsonFactory.getGson().fromJson(body, Message.class) : null;
         if (message == null) {
             throw new ApiException(400, "invalidRequest", "Invalid JSON body");
         }
 
-        // TODO: validate the message here (minimum length, etc.)
+        // The same validation as for each message of an array
+        if (!ValidationUtils.validateMessage(message)) {
+            throw new ApiException(400, "invalidMessage", MISSING_TEXT);
+        }
 
         // Some values of the Message should not be sent from the client app
         // Instead, we give them here explicit value
-        message.user = Ref.create(getAuthenticatedUser(req));
+        message.user = Ref.create(authUser);
+        // We keep a copy of what is needed to display the author with the message, so reading it needs no user lookup
+        message.author = new AuthorSummary(authUser);
         message.date = new Date();
         message.id = null;
 
         // Our message is now ready to be persisted into our repository
-        // After this call, our repository should have given it a non-null id
-        MessagesRepository.insertMessage(message);
+        // After this call, our repository has given it a non-null id, but the write is still running in the background
+        Result<Key<Message>> saved = MessagesRepository.insertMessageAsync(message);
+
+        // The message must also appear in the home timelines of the followers
+        // This can be a lot of writes, so we don't do it here but in a background task
+        // The task is added to the queue while the message is written (it only needs the id of the message)
+        FanOutTask.enqueue(message);
+
+        // We only wait for the end of the write before responding: if it fails, the client gets an error
+        // (the timelines skip the messages that don't exist, in case the task has copied it anyway)
+        saved.now();
 
         return message;
     }
 
+    // POST /messages with an array: the messages are validated one by one, then all the valid ones are written at once
+    // Clients that post lots of messages (bots, bridges with other servers...) save a request, an authentication and a write per message
+    private static List<MessagePostResult> postMessages(User authUser, JsonArray array) throws ApiException {
+        if (array.size() > MAX_POSTED_MESSAGES) {
+            throw new ApiException(400, "tooManyMessages", "No more than " + MAX_POSTED_MESSAGES + " messages can be posted at once");
+        }
+
+        Ref<User> userRef = Ref.create(authUser);
+        AuthorSummary author = new AuthorSummary(authUser);
+        Date date = new Date();
+
+        // There is one result per posted message, in the same order
+        List<MessagePostResult> results = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        for (JsonElement element : array) {
+            MessagePostResult result = new MessagePostResult();
+            results.add(result);
+
+            Message message;
+            try {
+                message = element.isJsonObject() ? GsonFactory.getGson().fromJson(element, Message.class) : null;
+            } catch (JsonParseException e) {
+                message = null;
+            }
+            if (message == null) {
+                result.error = invalidMessage("Invalid JSON message");
+                continue;
+            }
+            if (!ValidationUtils.validateMessage(message)) {
+                result.error = invalidMessage(MISSING_TEXT);
+                continue;
+            }
+
+            // Same as for a single message above
+            message.user = userRef;
+            message.author = author;
+            message.date = date;
+            message.id = null;
+            result.message = message;
+            messages.add(message);
+        }
+
+        if (!messages.isEmpty()) {
+            // The ids are taken from the reserved block, then all the messages are written with a single batch write
+            Result<Map<Key<Message>, Message>> saved = MessagesRepository.insertMessagesAsync(messages);
+
+            // The fan-out tasks are added to the queue by batches while the messages are written
+            FanOutTask.enqueue(messages);
+
+            saved.now();
+        }
+
+        return results;
+    }
+
+    // The error given for a posted message that was rejected, the others are still created
+    private static Error invalidMessage(String message) {
+        Error error = new Error();
+        error.status = 400;
+        error.code = "invalidMessage";
+        error.message = message;
+        return error;
+    }
+
 }
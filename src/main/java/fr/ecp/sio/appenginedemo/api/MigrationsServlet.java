@@ -0,0 +1,42 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import fr.ecp.sio.appenginedemo.data.MigrationsRepository;
+import fr.ecp.sio.appenginedemo.model.MigrationStatus;
+import fr.ecp.sio.appenginedemo.tasks.MigrationTask;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A servlet to start the migrations of the existing data and follow their progress (see MigrationTask).
+ * All requests on the exact path "/admin/migrations" are handled here; they are restricted to the administrators of the application in web.xml.
+ */
+public class MigrationsServlet extends JsonServlet {
+
+    // GET /admin/migrations
+    // The status of all the migrations
+    @Override
+    protected List<MigrationStatus> doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
+        List<MigrationStatus> statuses = new ArrayList<>();
+        for (String name : MigrationTask.MIGRATIONS) {
+            statuses.add(MigrationsRepository.getStatus(name));
+        }
+        return statuses;
+    }
+
+    // POST /admin/migrations?name={name}
+    // Start a migration in the background
+    @Override
+    protected MigrationStatus doPost(HttpServletRequest req) throws ServletException, IOException, ApiException {
+        String name = getStringParameter(req, "name");
+        if (name == null || !MigrationTask.MIGRATIONS.contains(name)) {
+            throw new ApiException(400, "invalidMigration", "Unknown migration " + name);
+        }
+        MigrationTask.enqueue(name);
+        return MigrationsRepository.getStatus(name);
+    }
+
+}
@@ -0,0 +1,30 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import fr.ecp.sio.appenginedemo.data.UsersRepository;
+import fr.ecp.sio.appenginedemo.model.CacheStats;
+import fr.ecp.sio.appenginedemo.utils.TokenUtils;
+import fr.ecp.sio.appenginedemo.utils.ValidationUtils;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A servlet to expose the statistics of the caches of the server instance, to help tuning their sizes.
+ * All requests on the exact path "/admin/stats" are handled here; they are restricted to the administrators of the application in web.xml.
+ * Note that each instance of the server has its own caches: the statistics are those of the instance that handles the request.
+ */
+public class StatsServlet extends JsonServlet {
+
+    @Override
+    protected List<CacheStats> doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
+        List<CacheStats> stats = new ArrayList<>();
+        stats.add(TokenUtils.getCacheStats());
+        stats.add(ValidationUtils.getImageUrlCacheStats());
+        stats.addAll(UsersRepository.getCacheStats());
+        return stats;
+    }
+
+}
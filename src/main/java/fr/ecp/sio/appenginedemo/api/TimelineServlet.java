@@ -0,0 +1,79 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import fr.ecp.sio.appenginedemo.data.DataException;
+import fr.ecp.sio.appenginedemo.data.MessagesRepository;
+import fr.ecp.sio.appenginedemo.data.TimelineRepository;
+import fr.ecp.sio.appenginedemo.data.TimelineService;
+import fr.ecp.sio.appenginedemo.model.User;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+
+/**
+ * A servlet to handle the requests on the home timeline of the authenticated user.
+ * All requests on the exact path "/timeline" are handled here.
+ */
+public class TimelineServlet extends JsonServlet {
+
+    /**
+     * @api {get} /timeline Home timeline
+     * @apiName GetTimeline
+     * @apiGroup Message
+     *
+     * @apiParam (Header parameter) {String} Authorization The token for user in form of "Bearer {token}"
+     * @apiParam (Url parameter) {String} [mode=hybrid] How the timeline is built: "write" only reads the timeline materialized when the messages are posted, "hybrid" merges the materialized timeline with the messages of the followed users who have too many followers to be materialized. "read" merges the messages of all the followed users when the timeline is read.
+     * @apiParam (Url parameter) {Number} [limit] Maximum number of messages retrieved per request (for pagination)
+     * @apiParam (Url parameter) {String} [continuationToken] Token to get the next page (for pagination)
+     *
+     * @apiSuccess {Array} messages The messages of the authenticated user and of the users he follows, most recent first.
+     * @apiSuccess {String} continuationToken Token to get the next page, absent if this is the last page.
+     *
+     * @apiError invalidAuthorization Invalid authorization header format
+     * @apiError invalidAuthorization Invalid token
+     * @apiError invalidAuthorization Missing authorization header
+     * @apiError invalidContinuationToken Invalid continuation token
+     *
+     * @apiSuccessExample Success-Response:
+     *     HTTP/1.1 200 OK
+     */
+    @Override
+    protected MessagesRepository.MessagesList doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
+        User authUser = getAuthenticatedUser(req);
+        if (authUser == null) {
+            throw new ApiException(401, "invalidAuthorization", "Missing authorization header");
+        }
+
+        Integer limit = getIntegerParameter(req, "limit");
+        String continuationToken = getStringParameter(req, "continuationToken");
+
+        try {
+            // The continuation token is specific to each mode, the client must keep the same mode while paginating
+            String mode = getStringParameter(req, "mode");
+
+            // GET /timeline?mode=write
+            // The timeline is materialized when the messages are posted (see FanOutTask)
+            // => reading a page is a single indexed query, but it misses the messages of the authors who are not fanned out
+            if ("write".equals(mode)) {
+                return TimelineRepository.getTimeline(authUser.id, limit, continuationToken);
+            }
+
+            // GET /timeline?mode=read
+            // Nothing is materialized: the messages of all the followed users are merged when the timeline is read
+            // => the timeline is always complete, but each page costs one query per followed user
+            if ("read".equals(mode)) {
+                return TimelineService.getMergedTimeline(authUser.id, limit, continuationToken);
+            }
+
+            // By default, the materialized timeline is merged with the messages of the few followed authors who are not fanned out
+            return TimelineService.getHybridTimeline(authUser.id, limit, continuationToken);
+        } catch (DataException e) {
+            throw new ApiException(
+                    e.getError().status,
+                    e.getError().code,
+                    e.getError().message
+            );
+        }
+    }
+
+}
@@ -62,7 +62,7 @@ public class TokenServlet extends JsonServlet {
             throw new ApiException(400, "invalidPassword", "Password did not match the specs");
         }
 
-        // Get user from login
+        // Get user from login (a get by key on the login lookup entity, see UserLogin, not a query)
         User user = UsersRepository.getUserByLogin(login);
         if (user != null) {
             // Build an hash with the provided password and the user id as a salt
@@ -2,11 +2,12 @@ package fr.ecp.sio.appenginedemo.api;
 
 import fr.ecp.sio.appenginedemo.data.DataException;
 import fr.ecp.sio.appenginedemo.data.ImagesRepository;
-import fr.ecp.sio.appenginedemo.data.MessagesRepository;
 import fr.ecp.sio.appenginedemo.data.UsersRepository;
 import fr.ecp.sio.appenginedemo.model.Avatar;
-import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.DeletionJob;
 import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.tasks.DeleteUserTask;
+import fr.ecp.sio.appenginedemo.tasks.RefreshAuthorTask;
 import fr.ecp.sio.appenginedemo.utils.ValidationUtils;
 import org.apache.tika.mime.MimeTypeException;
 
@@ -14,7 +15,9 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import java.io.*;
 import java.security.GeneralSecurityException;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * A servlet to handle all the requests on a specific user
@@ -33,7 +36,6 @@ public class UserServlet extends JsonServlet {
      * @apiSuccess {String} avatar Avatar of the User.
      * @apiSuccess {String} coverPicture Cover picture of the User.
      * @apiSuccess {String} email Email of the User (hidden if is different from authenticated user)
-     * @apiSuccess {String} password Password hash of the user
      *
      * @apiSuccessExample Success-Response:
      *     HTTP/1.1 200 OK
@@ -43,7 +45,7 @@ public class UserServlet extends JsonServlet {
      *           "avatar": "http://www.gravatar.com/avatar/a2fbe04611692ba9b7a5e148786419d7?d=wavatar",
      *           "coverPicture": "",
      *           "email": "*",
-     *           "password": "598a1a400c1dfdf36974e69d7e1bc98593f2e15015eed8e9b7e47a83b31693d5"
+     *           "password": "*"
      *     }
      *
      * @apiError userNotFound The id of the User was not found.
@@ -80,12 +82,8 @@ public class UserServlet extends JsonServlet {
         }
 
         // In all cases we never return the user password hash
-        user.password = "*";
-
         // Only if we are not requesting our own information, we hide the email
-        if (user.id != getAuthenticatedUser(req).id) {
-            user.email = "*";
-        }
+        hidePrivateFields(user, getAuthenticatedUser(req));
 
         return user;
     }
@@ -104,7 +102,6 @@ public class UserServlet extends JsonServlet {
      * @apiSuccess {String} avatar Avatar of the User.
      * @apiSuccess {String} coverPicture Cover picture of the User.
      * @apiSuccess {String} email Email of the User (hidden if is different from authenticated user)
-     * @apiSuccess {String} password Password hash of the user
      *
      * @apiSuccessExample Success-Response:
      *     HTTP/1.1 200 OK
@@ -114,7 +111,7 @@ public class UserServlet extends JsonServlet {
      *           "avatar": "http://www.gravatar.com/avatar/a2fbe04611692ba9b7a5e148786419d7?d=wavatar",
      *           "coverPicture": "",
      *           "email": "user2@yopmail.com",
-     *           "password": "598a1a400c1dfdf36974e69d7e1bc98593f2e15015eed8e9b7e47a83b31693d5"
+     *           "password": "*"
      *     }
      *
      * @apiError invalidAuthorization Invalid authorization header format
@@ -167,13 +164,22 @@ public class UserServlet extends JsonServlet {
             // Here we allow the Json to define or not any attribute
             // Only the attributes which are actually defined are checked for validity and if valid are updated
 
+            // The image URLs are checked by calling remote servers: we start both checks now so they run at the same time,
+            // and we only wait for their results below
+            Future<Boolean> avatarValidation = ValidationUtils.validateImageUrlAsync(userModified.avatar);
+            Future<Boolean> coverPictureValidation = ValidationUtils.validateImageUrlAsync(userModified.coverPicture);
+
+            // The avatar replaced by this request, if any
+            String previousAvatar = null;
+
+            // The messages of the user keep a copy of his login and avatar, they must be updated if these change
+            String previousLogin = authUser.login;
+            String previousEmail = authUser.email;
+
             if(userModified.login != null) {
                 if (!ValidationUtils.validateLogin(userModified.login)) {
                     throw new ApiException(400, "invalidLogin", "Login did not match the specs");
                 }
-                if (userModified.login != authUser.login && UsersRepository.getUserByLogin(userModified.login) != null) {
-                    throw new ApiException(400, "duplicateLogin", "Duplicate login");
-                }
 
                 authUser.login = userModified.login;
             }
@@ -191,23 +197,31 @@ public class UserServlet extends JsonServlet {
                     throw new ApiException(400, "invalidEmail", "Invalid email");
                 }
 
-                if (!userModified.email.equals(authUser.email) && UsersRepository.getUserByEmail(userModified.email) != null) {
-                    throw new ApiException(400, "duplicateEmail", "Duplicate email " + userModified.email + " / " + authUser.email);
-                }
 
                 authUser.email = userModified.email;
             }
 
-            if(userModified.avatar != null) {
-                if (!ValidationUtils.validateImageUrl(userModified.avatar)) {
+            // Sending back the current avatar changes nothing (and keeps its resized copies)
+            if(userModified.avatar != null && !userModified.avatar.equals(authUser.avatar)) {
+                // Our stored images are counted by reference (see ImagesRepository): a user cannot take one by its URL,
+                // otherwise releasing it later would delete the image of another user
+                // Uploading the same image again is cheap, as it is only stored once
+                if (ImagesRepository.getStoredFileName(userModified.avatar) != null) {
+                    throw new ApiException(400, "invalidAvatar", "A stored image must be uploaded with PUT /user/avatar");
+                }
+
+                if (!getValidationResult(avatarValidation)) {
                     throw new ApiException(400, "invalidAvatar", "Invalid avatar image");
                 }
 
+                previousAvatar = authUser.avatar;
                 authUser.avatar = userModified.avatar;
+                // We have no resized copies of an image hosted elsewhere
+                authUser.avatarSizes = null;
             }
 
             if (userModified.coverPicture != null) {
-                if (!ValidationUtils.validateImageUrl(userModified.coverPicture)) {
+                if (!getValidationResult(coverPictureValidation)) {
                     throw new ApiException(400, "invalidCoverPicture", "Invalid cover picture image");
                 }
 
@@ -215,12 +229,44 @@ public class UserServlet extends JsonServlet {
             }
 
             // Finally we save the user which has received all valid updated attributes from userModified
-            UsersRepository.saveUser(authUser);
+            // The uniqueness of the login and email is checked in the same transaction
+            try {
+                UsersRepository.updateUser(authUser, previousLogin, previousEmail);
+            } catch (DataException e) {
+                throw new ApiException(
+                        e.getError().status,
+                        e.getError().code,
+                        e.getError().message
+                );
+            }
+
+            boolean avatarChanged = previousAvatar != null && !previousAvatar.equals(authUser.avatar);
+            if (avatarChanged || !authUser.login.equals(previousLogin)) {
+                // A user may have lots of messages: they are updated in the background
+                RefreshAuthorTask.enqueue(authUser.id);
+            }
+
+            // The previous avatar may have been one of our stored images, that this user doesn't use anymore
+            if (avatarChanged) {
+                try {
+                    releaseStoredImage(previousAvatar);
+                } catch (DataException e) {
+                    throw new ApiException(
+                            e.getError().status,
+                            e.getError().code,
+                            e.getError().message
+                    );
+                }
+            }
         }
 
         // Follow or unfollow a user. We are here if call was made on /user/{id}/followed
         // which has called the rewriterule putting the id of user as a parameter
         if(hasParameter(req, "followed")) {
+            if(UsersRepository.getUser(requestedId) == null) {
+                throw new ApiException(400, "userNotFound", "The user you requested does not exist");
+            }
+
             UsersRepository.setUserFollowed(
                     authUser.id,
                     requestedId,
@@ -228,7 +274,28 @@ public class UserServlet extends JsonServlet {
             );
         }
 
-        return authUser;
+        // The authenticated user is returned like any other user: never with his password hash
+        // A copy is returned, as the request may still use the authenticated user (e.g. a batch)
+        User response = UsersRepository.copyUser(authUser);
+        hidePrivateFields(response, authUser);
+        return response;
+    }
+
+    // Release the reference of a user to an image, if it is one of our stored images (and not a Gravatar for example)
+    private static void releaseStoredImage(String url) throws IOException, DataException {
+        String fileName = ImagesRepository.getStoredFileName(url);
+        if (fileName != null) {
+            ImagesRepository.deleteImage(fileName);
+        }
+    }
+
+    // Wait for the result of an image URL validation started with ValidationUtils.validateImageUrlAsync()
+    private static boolean getValidationResult(Future<Boolean> validation) {
+        try {
+            return validation.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return false;
+        }
     }
 
     /**
@@ -241,15 +308,25 @@ public class UserServlet extends JsonServlet {
      * @apiParam (Header parameter) {String} Content-Type Mime type of the file (eg. image/jpeg)
      *
      * @apiSuccess {String} servingUrl Url of stored avatar image.
+     * @apiSuccess {Object} sizes Urls of the resized copies of the image (JPEG), by size in pixels.
      *
      * @apiSuccessExample Success-Response:
      *     HTTP/1.1 200 OK
-     *     {"servingUrl": "http://storage.googleapis.com/federatedbirds-storage/avatar-1.jpg"}
+     *     {
+     *          "servingUrl": "http://storage.googleapis.com/federatedbirds-storage/avatar-1.jpg",
+     *          "sizes": {
+     *              "48": "https://storage.googleapis.com/federatedbirds-storage/avatar-1-48.jpg",
+     *              "128": "https://storage.googleapis.com/federatedbirds-storage/avatar-1-128.jpg",
+     *              "512": "https://storage.googleapis.com/federatedbirds-storage/avatar-1-512.jpg"
+     *          }
+     *     }
      *
      * @apiError invalidAuthorization Invalid authorization header format
      * @apiError invalidAuthorization Invalid token
      * @apiError mimetypeError There was an error in the Content-Type given as header
-     * @apiError cannotSaveImage Wraps error coming from the data layer
+     * @apiError cannotSaveImage The image cannot be written to the storage, the request can be retried
+     * @apiError imageTooLarge The image is larger than the maximum size allowed
+     * @apiError invalidImage The image cannot be processed
      *
      * @apiErrorExample Error-Response:
      *     HTTP/1.1 401 Unauthorized
@@ -272,17 +349,42 @@ public class UserServlet extends JsonServlet {
                 // - the InputStream corresponds to the file content
                 // - we must also specify the content type (eg. image/jpeg)
                 // - then we have to specify a unique file id, here we user "avatar-{userId}"
+                // An image whose content is already stored is not stored twice, the existing file is returned instead
                 String savedFile = ImagesRepository.saveImage(
                         req.getInputStream(),
                         req.getHeader("Content-Type"),
                         "avatar-" + authUser.id
                 );
 
-                // Once the image has been uploaded we update the avatar URL for user
+                // The resized copies (thumbnails) are created once here, instead of resizing the image for each client
+                // If the image cannot be resized (e.g. not a valid image), the reference taken above is released,
+                // so the file is not kept in the storage
+                String savedFileName = ImagesRepository.getStoredFileName(savedFile);
+                Map<String, String> sizes;
+                try {
+                    sizes = ImagesRepository.saveDerivatives(savedFileName);
+                } catch (DataException e) {
+                    ImagesRepository.deleteImage(savedFileName);
+                    throw e;
+                }
+
+                // Once the image has been uploaded we update the avatar URLs for user
+                String previousAvatar = authUser.avatar;
                 authUser.avatar = savedFile;
+                authUser.avatarSizes = sizes;
                 UsersRepository.saveUser(authUser);
 
-                return new Avatar(savedFile);
+                // The messages of the user keep a copy of his avatar, they are updated in the background
+                if (!savedFile.equals(previousAvatar)) {
+                    RefreshAuthorTask.enqueue(authUser.id);
+                }
+
+                // The previous avatar is not used by this user anymore (it is only deleted if nobody else uses it)
+                releaseStoredImage(previousAvatar);
+
+                Avatar avatar = new Avatar(savedFile);
+                avatar.sizes = sizes;
+                return avatar;
             } catch(DataException e) {
                 // We wrap the data level exception inside our ApiException
                 // The purpose is to keep the data layer independant from the API layer
@@ -311,10 +413,11 @@ public class UserServlet extends JsonServlet {
      *
      * @apiParam (Header parameter) {String} Authorization The token for user in form of "Bearer {token}"
      *
-     * @apiSuccess {Void} null null
+     * @apiSuccess {String} jobId Id of the background job deleting the messages, relationships and images of the user.
      *
      * @apiSuccessExample Success-Response:
      *     HTTP/1.1 200 OK
+     *     {"jobId": "0f8fad5b-d9cb-469f-a165-70867728950e"}
      *
      * @apiError invalidAuthorization Invalid authorization header format
      * @apiError invalidAuthorization Invalid token
@@ -329,7 +432,7 @@ public class UserServlet extends JsonServlet {
      *
      */
     @Override
-    protected Void doDelete(HttpServletRequest req) throws ServletException, IOException, ApiException {
+    protected DeletionJob doDelete(HttpServletRequest req) throws ServletException, IOException, ApiException {
         // (OK) TODO: Security checks
         // (OK) TODO: Delete the user, the messages, the relationships
 
@@ -337,33 +440,12 @@ public class UserServlet extends JsonServlet {
         // authorized to delete his own account so there is no need for security check here
         User authUser = getAuthenticatedUser(req);
 
+        // The user is deleted right now, so his token stops working immediately
         UsersRepository.deleteUser(authUser.id);
 
-        // Then we delete the associated messages
-        // This should be done normally at data layer but as of now we are not supposed to do it
-        // so we do it by going through all the messages
-        List<Message> allMessages = MessagesRepository.getMessages();
-        for (Message message : allMessages) {
-            if(message.user.get().id == authUser.id) {
-                MessagesRepository.deleteMessage(message.id);
-            }
-        }
-
-        // Then we delete the avatar image in repository
-        try {
-            if(ValidationUtils.validateImageUrl(authUser.avatar)) {
-                String avatarFileName = authUser.avatar.substring(authUser.avatar.lastIndexOf('/') + 1);
-                ImagesRepository.deleteImage(avatarFileName);
-            }
-        } catch (DataException e) {
-            throw new ApiException(
-                    e.getError().status,
-                    e.getError().code,
-                    e.getError().message
-            );
-        }
-
-        return null;
+        // Then the associated messages, timeline, relationships and avatar image are deleted by a background task,
+        // by batches, so the request returns without waiting for them
+        return new DeletionJob(DeleteUserTask.enqueue(authUser.id, authUser.avatar));
     }
 
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package fr.ecp.sio.appenginedemo.api;
 
+import fr.ecp.sio.appenginedemo.data.DataException;
+import fr.ecp.sio.appenginedemo.data.ImagesRepository;
 import fr.ecp.sio.appenginedemo.data.UsersRepository;
 import fr.ecp.sio.appenginedemo.model.User;
 import fr.ecp.sio.appenginedemo.utils.MD5Utils;
@@ -10,7 +12,10 @@ import org.apache.commons.codec.digest.DigestUtils;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * A servlet to handle all the requests on a list of users
@@ -18,55 +23,67 @@ import java.util.List;
  */
 public class UsersServlet extends JsonServlet {
 
+    // The maximum number of users requested at once with the "ids" parameter
+    private static final int MAX_IDS = 100;
+
     /**
      * @api {get} /users/:id/[followed|followers] List Users
      * @apiName GetUsers
      * @apiGroup User
      *
      * @apiParam (Header parameter) {String} Authorization The token for user in form of "Bearer {token}"
-     * @apiParam (Header parameter) {String} limit Limit of users retrieved per request (for pagination)
-     * @apiParam (Header parameter) {String} continuationTolen Token to get the next page (for pagination)
+     * @apiParam (Url parameter) {Number} [limit] Maximum number of users retrieved per request (for pagination)
+     * @apiParam (Url parameter) {String} [continuationToken] Token to get the next page (for pagination)
+     * @apiParam (Url parameter) {Boolean} [stream] If true, the users are written while they are read, 5000 at most (authenticated users only): the continuationToken, written after them, streams the next ones. If the stream is interrupted, the users are followed by an error instead.
      * @apiParam (Url parameter) {Number} id Users unique ID. This ID can be "me" for currently authenticated user.
      * @apiParam (Url parameter) {String} followed|followers Type of users relations to retrieve (can be "followed" or "followers"). All users if not specified.
+     * @apiParam (Url parameter) {String} [ids] Comma-separated list of user ids (100 at most): the users are returned as a plain array, in the same order (no pagination, the unknown ids are skipped)
      *
-     * @apiSuccess {Array} array List of all users by default. If "followed" or "followers" parameters are specified, then list of corresponding users only.
+     * @apiSuccess {Array} users List of all users by default. If "followed" or "followers" parameters are specified, then list of corresponding users only.
+     * @apiSuccess {String} continuationToken Token to get the next page, absent if this is the last page.
      * @apiSuccess {String} login Login of the User.
      * @apiSuccess {String} avatar Avatar of the User.
      * @apiSuccess {String} coverPicture Cover picture of the User.
      * @apiSuccess {String} email Email of the User (hidden if is different from authenticated user).
-     * @apiSuccess {String} password Password hash of the user.
      *
      * @apiSuccessExample Success-Response:
      *     HTTP/1.1 200 OK
-     *     [
-     *           {
+     *     {
+     *       "users": [
+     *         {
      *             "id": 1,
      *             "login": "user1",
      *             "avatar": "http://storage.googleapis.com/federatedbirds-storage/avatar-1.jpg",
      *             "coverPicture": "",
      *             "email": "user1@yopmail.com",
-     *             "password": "0b14d501a594442a01c6859541bcb3e8164d183d32937b851835442f69d5c94e"
-     *           },
-     *           {
+     *             "password": "*"
+     *         },
+     *         {
      *             "id": 1000001,
      *             "login": "user3",
      *             "avatar": "http://www.gravatar.com/avatar/09e7572bb8bb7f8327302cd6fdb30e28?d=wavatar",
      *             "coverPicture": "",
-     *             "email": "user3@yopmail.com",
-     *             "password": "bc4f7f75a897a48c660a15077318226a17d01b320dea8aacf63f1b29fcfcf2a1"
-     *           },
-     *           {
+     *             "email": "*",
+     *             "password": "*"
+     *         },
+     *         {
      *             "id": 2000001,
      *             "login": "user4",
      *             "avatar": "http://www.gravatar.com/avatar/b590919a75487a843e13bcc99e8e9fc6?d=wavatar",
      *             "coverPicture": "",
-     *             "email": "user4@yopmail.com",
-     *             "password": "a75c2000f6ca4b31cba2c85fd2c7ab7582967ffb929ce938e137b0f4dd15a930"
-     *           }
-     *         ]
+     *             "email": "*",
+     *             "password": "*"
+     *         }
+     *       ],
+     *       "continuationToken": "E-ABAIICJmoUc35mZWRlcmF0ZWRiaXJkc3INCxIEVXNlchiBhPQBDBQ"
+     *     }
      *
      * @apiError invalidAuthorization Invalid authorization header format
      * @apiError invalidAuthorization Invalid token
+     * @apiError invalidContinuationToken Invalid continuation token
+     * @apiError streamInterrupted The stream was interrupted, the list is incomplete (with stream only, in the "error" field after the users)
+     * @apiError invalidIds Invalid user id
+     * @apiError tooManyIds No more than 100 users can be requested at once
      *
      * @apiErrorExample Error-Response:
      *     HTTP/1.1 401 Unauthorized
@@ -77,7 +94,7 @@ public class UsersServlet extends JsonServlet {
      *     }
      */
     @Override
-    protected List<User> doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
+    protected Object doGet(HttpServletRequest req) throws ServletException, IOException, ApiException {
         // TODO: define parameters to search/filter users by login, with limit, order...
         // (OK) TODO: define parameters to get the followings and the followers of a user given its id
         // (OK) TODO: define parameters to get the followings and the followers of a user given its id
@@ -93,18 +110,83 @@ public class UsersServlet extends JsonServlet {
         Integer limit = getIntegerParameter(req, "limit");
         String continuationToken = getStringParameter(req, "continuationToken");
 
-        // GET /users/{id}/followed => /users?id={id}&followedBy
-        if(hasParameter(req, "followedBy")) {
-            return UsersRepository.getUserFollowed(getIdParameter(req), limit, continuationToken).users;
+        // In all the lists, we never return the password hashes, and the email only to its owner
+        User authUser = getAuthenticatedUser(req);
+
+        // GET /users?ids=1,2,3
+        // A client can get all the users it needs at once (e.g. the authors of a page of messages), with a single batch get
+        if(hasParameter(req, "ids")) {
+            List<User> users = UsersRepository.getUsers(getIdsParameter(req));
+            for (User user : users) {
+                hidePrivateFields(user, authUser);
+            }
+            return users;
         }
 
-        // GET /users/{id}/follower => /users?id={id}&followerOf
-        if(hasParameter(req, "followerOf")) {
-            return UsersRepository.getUserFollowers(getIdParameter(req), limit, continuationToken).users;
+        // Whatever the list, we only return one page of users at once, along with the token to get the next one
+        // => the memory used by a request does not depend on the total number of users
+        UsersRepository.UsersList users;
+        try {
+            // GET /users?stream=true
+            // The whole list is returned as a stream: the JsonServlet writes the users while they are read by batches
+            // A stream may be long (see Pagination.STREAM_MAX_SIZE), it is only given to the authenticated users
+            if(getBooleanParameter(req, "stream")) {
+                if (authUser == null) {
+                    throw new ApiException(401, "invalidAuthorization", "Missing authorization header");
+                }
+                if(hasParameter(req, "followedBy")) {
+                    return hidePrivateFields(UsersRepository.streamUserFollowed(getIdParameter(req), continuationToken), authUser);
+                }
+                if(hasParameter(req, "followerOf")) {
+                    return hidePrivateFields(UsersRepository.streamUserFollowers(getIdParameter(req), continuationToken), authUser);
+                }
+                return hidePrivateFields(UsersRepository.streamUsers(continuationToken), authUser);
+            }
+
+            // GET /users/{id}/followed => /users?id={id}&followedBy
+            if(hasParameter(req, "followedBy")) {
+                users = UsersRepository.getUserFollowed(getIdParameter(req), limit, continuationToken);
+            }
+
+            // GET /users/{id}/follower => /users?id={id}&followerOf
+            else if(hasParameter(req, "followerOf")) {
+                users = UsersRepository.getUserFollowers(getIdParameter(req), limit, continuationToken);
+            }
+
+            // By default, return all users
+            else {
+                users = UsersRepository.getUsers(limit, continuationToken);
+            }
+        } catch (DataException e) {
+            throw new ApiException(
+                    e.getError().status,
+                    e.getError().code,
+                    e.getError().message
+            );
+        }
+        for (User user : users.users) {
+            hidePrivateFields(user, authUser);
         }
+        return users;
+    }
 
-        // By default, return all users
-        return UsersRepository.getUsers(null, null).users;
+    // Parse the comma-separated list of ids, without duplicates
+    private static Set<Long> getIdsParameter(HttpServletRequest req) throws ApiException {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (String id : getStringParameter(req, "ids").split(",")) {
+            if (id.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                ids.add(Long.parseLong(id.trim()));
+            } catch (NumberFormatException e) {
+                throw new ApiException(400, "invalidIds", "Invalid user id " + id);
+            }
+        }
+        if (ids.size() > MAX_IDS) {
+            throw new ApiException(400, "tooManyIds", "No more than " + MAX_IDS + " users can be requested at once");
+        }
+        return ids;
     }
 
     /**
@@ -153,12 +235,6 @@ public class UsersServlet extends JsonServlet {
         if (!ValidationUtils.validateEmail(user.email)) {
             throw new ApiException(400, "invalidEmail", "Invalid email");
         }
-        if (UsersRepository.getUserByLogin(user.login) != null) {
-            throw new ApiException(400, "duplicateLogin", "Duplicate login");
-        }
-        if (UsersRepository.getUserByEmail(user.email) != null) {
-            throw new ApiException(400, "duplicateEmail", "Duplicate email");
-        }
 
         // Explicitly give a fresh id to the user (we need it for next step)
         user.id = UsersRepository.allocateNewId();
@@ -166,12 +242,26 @@ public class UsersServlet extends JsonServlet {
         // (OK) TODO: find a solution to receive an store profile pictures
         // Simulate an avatar image using Gravatar API
         user.avatar = "http://www.gravatar.com/avatar/" + MD5Utils.md5Hex(user.email) + "?d=wavatar";
+        // Gravatar resizes the images itself with the "s" parameter, we give the same sizes as for our uploaded avatars
+        user.avatarSizes = new LinkedHashMap<>();
+        for (int size : ImagesRepository.DERIVATIVE_SIZES) {
+            user.avatarSizes.put(Integer.toString(size), user.avatar + "&s=" + size);
+        }
 
         // Hash the user password with the id a a salt
         user.password = generateUserPassword(user);
 
         // Persist the user into the repository
-        UsersRepository.saveUser(user);
+        // The uniqueness of the login and email is checked in the same transaction (no other user can take them in between)
+        try {
+            UsersRepository.createUser(user);
+        } catch (DataException e) {
+            throw new ApiException(
+                    e.getError().status,
+                    e.getError().code,
+                    e.getError().message
+            );
+        }
 
         // Create and return a token for the new user
         return TokenUtils.generateToken(user.id);
@@ -0,0 +1,135 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import fr.ecp.sio.appenginedemo.model.Celebrity;
+
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * This is a repository class for the users whose messages are not copied into the timelines of their followers (see Celebrity).
+ * The markers are read for each message posted and for each page of the hybrid timeline,
+ * so they are kept in the memcache, shared by all the instances, in front of the datastore.
+ */
+public class CelebritiesRepository {
+
+    static {
+        ObjectifyService.register(Celebrity.class);
+    }
+
+    // The status of each user (Boolean by user id), and the map of all the celebrities (see getCelebrities())
+    private static final MemcacheService MEMCACHE = MemcacheServiceFactory.getMemcacheService("celebrities");
+
+    // The key of the map of all the celebrities in the memcache
+    private static final String CELEBRITIES_KEY = "all";
+
+    // How long the status of a user is trusted before his followers are counted again
+    // It can be configured with a system property in appengine-web.xml
+    private static final int STATUS_TTL_SECONDS = Integer.getInteger("federatedbirds.celebrityStatus.ttlSeconds", 600);
+
+    // The map of all the celebrities is removed from the memcache when a celebrity is marked or unmarked,
+    // but the query that reads it again is eventually consistent: it expires soon in case it was read before the change
+    private static final int CELEBRITIES_TTL_SECONDS = 60;
+
+    /**
+     * @param id The id of the user
+     * @return The status of the user recorded with setCelebrity(), or null if it has expired
+     */
+    public static Boolean getCachedStatus(long id) {
+        return (Boolean) MEMCACHE.get(id);
+    }
+
+    /**
+     * Mark a user whose messages are not copied into the timelines of his followers from now on, or unmark him.
+     * The status is kept in the memcache for a while (see getCachedStatus()), the marker is only written when it changes.
+     * An unmarked user keeps his marker until the messages he posted as a celebrity are copied (see deleteFormerCelebrity()).
+     * @param id The id of the user
+     * @param celebrity true to mark the user, false to unmark him
+     * @return The marker if it has just been changed, null if the user already had the requested status
+     */
+    public static Celebrity setCelebrity(final long id, final boolean celebrity) {
+        Celebrity changed = ObjectifyService.ofy().transact(new Work<Celebrity>() {
+            @Override
+            public Celebrity run() {
+                Celebrity marker = ObjectifyService.ofy().load().type(Celebrity.class).id(id).now();
+                boolean marked = marker != null && marker.until == null;
+                if (marked == celebrity) {
+                    return null;
+                }
+                if (celebrity) {
+                    marker = new Celebrity(id);
+                } else {
+                    // The marker is kept: the messages he posted until now are still merged into the timelines
+                    marker.until = new Date();
+                }
+                ObjectifyService.ofy().save().entity(marker);
+                return marker;
+            }
+        });
+        if (changed != null) {
+            MEMCACHE.delete(CELEBRITIES_KEY);
+        }
+        MEMCACHE.put(id, celebrity, Expiration.byDeltaSeconds(STATUS_TTL_SECONDS));
+        return changed;
+    }
+
+    /**
+     * Get all the users who are celebrities, and the former ones whose messages are still being copied (see deleteFormerCelebrity()).
+     * There are few of them, as they have more followers than a high threshold.
+     * @return The date until which the messages of each celebrity were not copied (null if he is still a celebrity), by user id
+     */
+    @SuppressWarnings("unchecked")
+    public static HashMap<Long, Date> getCelebrities() {
+        HashMap<Long, Date> celebrities = (HashMap<Long, Date>) MEMCACHE.get(CELEBRITIES_KEY);
+        if (celebrities == null) {
+            celebrities = new HashMap<>();
+            for (Celebrity celebrity : ObjectifyService.ofy().load().type(Celebrity.class)) {
+                celebrities.put(celebrity.id, celebrity.until);
+            }
+            MEMCACHE.put(CELEBRITIES_KEY, celebrities, Expiration.byDeltaSeconds(CELEBRITIES_TTL_SECONDS));
+        }
+        return celebrities;
+    }
+
+    /**
+     * Delete the marker of a former celebrity, once the messages he posted as a celebrity have been copied into the timelines.
+     * Nothing is deleted if the user has been marked again meanwhile, or unmarked again at another date.
+     * @param id The id of the user
+     * @param until The date the user was unmarked, when the copy of his messages started
+     */
+    public static void deleteFormerCelebrity(final long id, final Date until) {
+        boolean deleted = ObjectifyService.ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                Celebrity marker = ObjectifyService.ofy().load().type(Celebrity.class).id(id).now();
+                if (marker == null || marker.until == null || !marker.until.equals(until)) {
+                    return false;
+                }
+                ObjectifyService.ofy().delete().entity(marker);
+                return true;
+            }
+        });
+        if (deleted) {
+            MEMCACHE.delete(CELEBRITIES_KEY);
+        }
+    }
+
+    /**
+     * Delete the marker of a user, once all his messages have been removed
+     * @param id The id of the user
+     */
+    public static void deleteCelebrity(long id) {
+        ObjectifyService.ofy()
+                .delete()
+                .type(Celebrity.class)
+                .id(id)
+                .now();
+        MEMCACHE.delete(id);
+        MEMCACHE.delete(CELEBRITIES_KEY);
+    }
+
+}
@@ -0,0 +1,82 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.RetryParams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+
+/**
+ * A StorageClient that stores the files in a bucket of the Cloud Storage, using the GCS client library.
+ * The library calls the storage over HTTPS through the URL Fetch service, which reuses its connections between calls,
+ * and it retries the failed calls with an exponential backoff, as configured by the RetryParams.
+ */
+public class GcsStorageClient implements StorageClient {
+
+    // The size of the chunks read ahead when a file is read
+    private final static int PREFETCH_SIZE = 256 * 1024;
+
+    private final String mBucketName;
+
+    // The GCS service is thread-safe, a single instance is shared by all the requests
+    private final GcsService mGcsService;
+
+    public GcsStorageClient(String bucketName, RetryParams retryParams) {
+        mBucketName = bucketName;
+        mGcsService = GcsServiceFactory.createGcsService(retryParams);
+    }
+
+    @Override
+    public OutputStream create(String name, String contentType, String cacheControl, boolean publicRead) throws IOException {
+        GcsFileOptions.Builder options = new GcsFileOptions.Builder();
+        if (contentType != null) {
+            options.mimeType(contentType);
+        }
+        if (cacheControl != null) {
+            options.cacheControl(cacheControl);
+        }
+        if (publicRead) {
+            options.acl("public-read");
+        }
+        // The GCS client sends each chunk in the background while the next one is written
+        return Channels.newOutputStream(mGcsService.createOrReplace(getFilename(name), options.build()));
+    }
+
+    @Override
+    public InputStream open(String name) throws IOException {
+        return Channels.newInputStream(mGcsService.openPrefetchingReadChannel(getFilename(name), 0, PREFETCH_SIZE));
+    }
+
+    @Override
+    public boolean exists(String name) throws IOException {
+        return mGcsService.getMetadata(getFilename(name)) != null;
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        return mGcsService.delete(getFilename(name));
+    }
+
+    @Override
+    public Image getImage(String name) {
+        // The Images service reads the file directly from the storage, it does not go through our instance
+        return ImagesServiceFactory.makeImageFromFilename("/gs/" + mBucketName + "/" + name);
+    }
+
+    @Override
+    public String getServingUrl() {
+        return "https://storage.googleapis.com/" + mBucketName + "/";
+    }
+
+    private GcsFilename getFilename(String name) {
+        return new GcsFilename(mBucketName, name);
+    }
+
+}
@@ -0,0 +1,96 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.KeyRange;
+import com.googlecode.objectify.Key;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Gives unique ids to the new entities of a kind, before they are saved.
+ * Asking the datastore for each id would cost a call per entity, so the ids are reserved by blocks (e.g. 1000 at once)
+ * and given from memory to all the requests of the instance.
+ * The next block is reserved in advance, by the request that takes an id when the current one is almost exhausted,
+ * so the requests that exhaust the block don't wait for the datastore: only one request per block does.
+ * The ids come from the same allocator as the automatic ids of the datastore, so they never collide with them.
+ */
+public class IdAllocator {
+
+    // The ids left in the current block when the allocation of the next one starts
+    private static final int REFILL_RATIO = 5;
+
+    private final String mKind;
+    private final long mBlockSize;
+
+    // The block the ids are currently taken from: reading it and taking an id does not need any lock
+    private final AtomicReference<Block> mBlock = new AtomicReference<>(new Block(1, 0));
+
+    // The next block, if it has been reserved already
+    // It is only accessed in synchronized methods, which are called once per block
+    private KeyRange mNextRange;
+
+    /**
+     * @param entityClass The class of the entities, registered in Objectify
+     * @param blockSize The number of ids reserved at once
+     */
+    public IdAllocator(Class<?> entityClass, long blockSize) {
+        mKind = Key.getKind(entityClass);
+        mBlockSize = blockSize;
+    }
+
+    /**
+     * @return A new id, never returned before
+     */
+    public long nextId() {
+        while (true) {
+            Block block = mBlock.get();
+            // Each call gets a different value, even when several threads call it at the same time
+            long id = block.next.getAndIncrement();
+            if (id <= block.end) {
+                // Only one call gets this exact id, so the next block is reserved once
+                if (block.end - id == mBlockSize / REFILL_RATIO) {
+                    reserveNextBlock();
+                }
+                return id;
+            }
+            // The block is exhausted: switch to the next one and try again
+            switchBlock(block);
+        }
+    }
+
+    // Reserve the next block, if it is not reserved yet
+    // The call is synchronous: on App Engine, an asynchronous call must be completed by the request that started it,
+    // it cannot be left for the request that will exhaust the current block
+    private synchronized void reserveNextBlock() {
+        if (mNextRange == null) {
+            mNextRange = DatastoreServiceFactory.getDatastoreService().allocateIds(mKind, mBlockSize);
+        }
+    }
+
+    private synchronized void switchBlock(Block exhausted) {
+        if (mBlock.get() != exhausted) {
+            // Another thread already switched while we were waiting for the lock
+            return;
+        }
+        // The next block should have been reserved already, unless this is the first block
+        reserveNextBlock();
+        KeyRange range = mNextRange;
+        mNextRange = null;
+        mBlock.set(new Block(range.getStart().getId(), range.getEnd().getId()));
+    }
+
+    // A range of reserved ids, from start to end (inclusive)
+    private static class Block {
+
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+
+    }
+
+}
@@ -1,80 +1,341 @@
 package fr.ecp.sio.appenginedemo.data;
 
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.OutputSettings;
+import com.google.appengine.tools.cloudstorage.RetryParams;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import fr.ecp.sio.appenginedemo.model.StoredImage;
+import fr.ecp.sio.appenginedemo.model.StoredImageHash;
 import fr.ecp.sio.appenginedemo.utils.FileUtils;
-import org.apache.tika.io.IOUtils;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.tika.mime.MimeTypeException;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
-import java.net.URL;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This is a repository class for the images.
  * It could be backed by any kind of persistent storage engine.
- * Here we use the Cloud Storage from Google Cloud Platform, and we access it using the XML API.
+ * Here we use the Cloud Storage from Google Cloud Platform by default, through a StorageClient.
+ * The images are found by the hash of their content (see StoredImageHash), so an image uploaded twice is stored once,
+ * and the references to each file are counted in the datastore (see StoredImage).
  */
 public class ImagesRepository {
-    // We store here the constants which depend on the bucked name
-    private final static String BUCKET_URL = "http://federatedbirds-storage.storage.googleapis.com/";
-    private final static String SERVING_URL = "https://storage.googleapis.com/federatedbirds-storage/";
 
-    public static String saveImage(InputStream inputStream, String contentType, String fileId) throws IOException, DataException, MimeTypeException, GeneralSecurityException {
-        // Saves an image given its content type and ID
+    static {
+        ObjectifyService.register(StoredImage.class);
+        ObjectifyService.register(StoredImageHash.class);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ImagesRepository.class.getSimpleName());
+
+    // The name of the Cloud Storage bucket where the images are stored
+    private final static String BUCKET_NAME = "federatedbirds-storage";
+
+    // The uploaded files are copied to the storage by chunks of this size (a multiple of 256KB, as expected by Cloud Storage)
+    private final static int CHUNK_SIZE = 256 * 1024;
+
+    // The maximum size of an uploaded image in bytes, it can be configured in appengine-web.xml
+    private final static long MAX_IMAGE_SIZE = Long.getLong("federatedbirds.maxImageSize", 5 * 1024 * 1024);
+
+    // The sizes (width and height, in pixels) of the resized copies created for each uploaded image
+    public final static int[] DERIVATIVE_SIZES = {48, 128, 512};
 
-        // First we convert the InputStream containing image to a byte array
-        // To ease this operation we use the commons-io apache library
-        byte[] allBytes = org.apache.commons.io.IOUtils.toByteArray(inputStream);
+    // The JPEG quality of the resized copies (0-100)
+    private final static int DERIVATIVE_QUALITY = 85;
 
-        HttpURLConnection connection;
-        String fileName;
-        String fileExtension;
+    // The stored files never change, they can be cached by the clients and the CDN for a year
+    private final static String CACHE_CONTROL = "public, max-age=31536000, immutable";
 
+    // The storage is shared by all the requests, its implementation depends on the configuration (see createStorageClient())
+    private final static StorageClient STORAGE = createStorageClient();
+
+    // When a local directory is configured in appengine-web.xml, the images are stored there instead of the Cloud Storage
+    // Otherwise the timeouts and retries of the calls to the Cloud Storage can be configured
+    private static StorageClient createStorageClient() {
+        String localDirectory = System.getProperty("federatedbirds.storage.localDirectory");
+        if (localDirectory != null) {
+            return new LocalStorageClient(
+                    new File(localDirectory),
+                    System.getProperty("federatedbirds.storage.localServingUrl", "http://localhost:8080/storage/")
+            );
+        }
+        return new GcsStorageClient(
+                BUCKET_NAME,
+                new RetryParams.Builder()
+                        .requestTimeoutMillis(Long.getLong("federatedbirds.storage.timeoutMillis", 10000L))
+                        .retryMaxAttempts(Integer.getInteger("federatedbirds.storage.maxAttempts", 3))
+                        .initialRetryDelayMillis(Long.getLong("federatedbirds.storage.initialRetryDelayMillis", 100L))
+                        .maxRetryDelayMillis(Long.getLong("federatedbirds.storage.maxRetryDelayMillis", 2000L))
+                        .retryDelayBackoffFactor(2)
+                        .build()
+        );
+    }
+
+    /**
+     * Store an image, unless the same content is already stored (e.g. uploaded again, or by another user):
+     * the existing file is then reused, so each call adds a reference to the file,
+     * that must be released with deleteImage() when it is not used anymore.
+     * @param inputStream The content of the image
+     * @param contentType The mime type of the image (e.g. image/jpeg)
+     * @param fileId A unique id for this upload, used to name the file
+     * @return The serving URL of the stored image
+     */
+    public static String saveImage(InputStream inputStream, String contentType, String fileId) throws DataException, MimeTypeException, GeneralSecurityException {
         // We retrieve the file extension from the contentype using our custom FileUtils helper class
-        fileExtension = FileUtils.getFileExtFromContentType(contentType);
-        fileName = fileId + fileExtension;
-
-        // Here we contact the Cloud Storage XML API to actually store the file
-        URL url = new URL(BUCKET_URL + fileName);
-        connection = (HttpURLConnection)url.openConnection();
-        connection.setRequestMethod("PUT");
-        connection.setRequestProperty("Content-Type", contentType);
-        connection.setRequestProperty("Content-Length", Integer.toString(allBytes.length));
-        connection.setUseCaches(false);
-        connection.setDoOutput(true);
-
-        // Send request
-        DataOutputStream wr = new DataOutputStream (connection.getOutputStream());
-        wr.write(allBytes, 0, allBytes.length);
-        wr.close();
-
-        // We check if the API is replying by 200 for success
-        // Otherwise we retrieve the error message and wrap it in a our DataException
-        if(connection.getResponseCode() != 200) {
-            String errorMessage = IOUtils.toString(connection.getErrorStream(), "UTF-8");
-            throw new DataException(connection.getResponseCode(), "cannotSaveImage", errorMessage);
+        String fileExtension = FileUtils.getFileExtFromContentType(contentType);
+
+        // The file is written once, directly under its final name, with its public serving options
+        // The hash is only known once the whole file is read, so the name is unique to this upload instead
+        String fileName = fileId + "-" + UUID.randomUUID() + fileExtension;
+
+        // The hash is computed on the fly with the chunks
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try {
+            uploadFile(inputStream, fileName, contentType, digest);
+        } catch (IOException e) {
+            // The storage failed (or the client stopped sending the file), the request can be retried
+            LOGGER.log(Level.WARNING, "Cannot store " + fileName, e);
+            throw new DataException(503, "cannotSaveImage", "The image cannot be saved, please try again");
+        }
+
+        // The reference is counted once the file is complete, so a referenced file is never missing
+        // If the same content is already stored, our file is not needed: the existing one gets the reference
+        String storedFileName = addReference(Hex.encodeHexString(digest.digest()) + fileExtension, fileName);
+        if (!storedFileName.equals(fileName)) {
+            deleteUnusedFile(fileName);
         }
 
         // We finally return the full URL to the stored image
-        return SERVING_URL + fileName;
+        return STORAGE.getServingUrl() + storedFileName;
+    }
+
+    // Upload a file to the storage while computing its hash
+    // The file is not read in memory as a whole: we copy it chunk by chunk from the request to the storage.
+    private static void uploadFile(InputStream inputStream, String fileName, String contentType, MessageDigest digest) throws IOException, DataException {
+        OutputStream outputStream = createServedFile(fileName, contentType);
+        byte[] buffer = new byte[CHUNK_SIZE];
+        boolean uploaded = false;
+        try {
+            long size = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                size += read;
+                if (size > MAX_IMAGE_SIZE) {
+                    throw new DataException(413, "imageTooLarge", "The image must not be larger than " + MAX_IMAGE_SIZE + " bytes");
+                }
+                digest.update(buffer, 0, read);
+                outputStream.write(buffer, 0, read);
+            }
+
+            // Closing the stream commits the file in the storage
+            outputStream.close();
+            uploaded = true;
+        } finally {
+            if (!uploaded) {
+                // The stream must be closed to release its resources, which may commit a partial file (e.g. LocalStorageClient):
+                // the file is deleted anyway
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Cannot close " + fileName, e);
+                }
+                deleteUnusedFile(fileName);
+            }
+        }
+    }
+
+    // Delete a file that has never been referenced
+    // Nobody knows its name, so a failure only leaves an orphan file in the storage: it is logged instead of failing the request
+    private static void deleteUnusedFile(String fileName) {
+        try {
+            STORAGE.delete(fileName);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot delete the unused file " + fileName, e);
+        }
+    }
+
+    // Create a file served to the clients
+    // The content of a file never changes once stored, so the clients and the CDN can cache it forever
+    private static OutputStream createServedFile(String fileName, String contentType) throws IOException {
+        return STORAGE.create(fileName, contentType, CACHE_CONTROL, true);
     }
 
+    // Count one more reference to the stored file with the given hash, or to the given uploaded file if there is none
+    // Return the name of the file that got the reference
+    private static String addReference(final String hash, final String fileName) {
+        return ObjectifyService.ofy().transact(new Work<String>() {
+            @Override
+            public String run() {
+                // The files stored before the lookups existed are named by their hash
+                StoredImageHash lookup = ObjectifyService.ofy().load().type(StoredImageHash.class).id(hash).now();
+                String storedName = lookup != null ? lookup.fileName : hash;
+                StoredImage image = ObjectifyService.ofy().load().type(StoredImage.class).id(storedName).now();
+
+                // An image that is being deleted cannot get a new reference, so its file is never deleted under our feet
+                if (image != null && image.deletionStarted == null) {
+                    image.references++;
+                    ObjectifyService.ofy().save().entity(image);
+                    return image.name;
+                }
+
+                image = new StoredImage(fileName);
+                image.hash = hash;
+                image.references = 1;
+                ObjectifyService.ofy().save().entities(image, new StoredImageHash(hash, fileName));
+                return fileName;
+            }
+        });
+    }
+
+    // Count one less reference to a stored file and return the remaining number of references
+    // When there is no reference left, the image is marked as being deleted instead of being deleted right away:
+    // the files can then be deleted without any new reference being added meanwhile (see finishDeletion())
+    private static long removeReference(final String fileName) {
+        return ObjectifyService.ofy().transact(new Work<Long>() {
+            @Override
+            public Long run() {
+                StoredImage image = ObjectifyService.ofy().load().type(StoredImage.class).id(fileName).now();
+                if (image == null) {
+                    image = new StoredImage(fileName);
+                }
+                if (image.references <= 1) {
+                    // A deletion that is retried keeps its start date
+                    if (image.deletionStarted == null) {
+                        image.deletionStarted = new Date();
+                    }
+                    // The same content uploaded from now on is stored again, instead of waiting for the end of the deletion
+                    if (image.hash != null) {
+                        StoredImageHash lookup = ObjectifyService.ofy().load().type(StoredImageHash.class).id(image.hash).now();
+                        if (lookup != null && lookup.fileName.equals(fileName)) {
+                            ObjectifyService.ofy().delete().entity(lookup);
+                        }
+                    }
+                    image.references = 0;
+                    ObjectifyService.ofy().save().entity(image);
+                    return 0L;
+                }
+                image.references--;
+                ObjectifyService.ofy().save().entity(image);
+                return image.references;
+            }
+        });
+    }
+
+    // Delete the counter of an image once its files are deleted
+    private static void finishDeletion(final String fileName) {
+        ObjectifyService.ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                StoredImage image = ObjectifyService.ofy().load().type(StoredImage.class).id(fileName).now();
+                if (image != null && image.deletionStarted != null) {
+                    ObjectifyService.ofy().delete().entity(image);
+                }
+            }
+        });
+    }
+
+    /**
+     * Create resized copies of a stored image, one for each size in DERIVATIVE_SIZES, and store them beside the original.
+     * The clients can then download the smallest image that fits their needs instead of the original.
+     * The copies of an image that is already stored are not computed again.
+     * @param fileName The name of the stored original image
+     * @return The serving URLs of the copies, by size
+     */
+    public static Map<String, String> saveDerivatives(String fileName) throws DataException {
+        ImagesService imagesService = ImagesServiceFactory.getImagesService();
+
+        // The copies are re-encoded as JPEG, which is much lighter than most original formats for pictures
+        OutputSettings outputSettings = new OutputSettings(ImagesService.OutputEncoding.JPEG);
+        outputSettings.setQuality(DERIVATIVE_QUALITY);
+
+        // The Images service reads the original directly from the storage, and all the sizes are computed at the same time
+        Map<Integer, Future<Image>> resizedImages = new LinkedHashMap<>();
+        Map<String, String> servingUrls = new LinkedHashMap<>();
+        try {
+            for (int size : DERIVATIVE_SIZES) {
+                String derivativeName = getDerivativeName(fileName, size);
+                servingUrls.put(Integer.toString(size), STORAGE.getServingUrl() + derivativeName);
+                if (STORAGE.exists(derivativeName)) {
+                    continue;
+                }
+                // Note that a transformation modifies the Image object, so we need a new one for each size
+                Image original = STORAGE.getImage(fileName);
+                resizedImages.put(size, imagesService.applyTransformAsync(
+                        ImagesServiceFactory.makeResize(size, size),
+                        original,
+                        outputSettings
+                ));
+            }
+
+            for (Map.Entry<Integer, Future<Image>> resizedImage : resizedImages.entrySet()) {
+                try {
+                    byte[] data = resizedImage.getValue().get().getImageData();
+                    OutputStream outputStream = createServedFile(getDerivativeName(fileName, resizedImage.getKey()), "image/jpeg");
+                    outputStream.write(data);
+                    outputStream.close();
+                } catch (InterruptedException | ExecutionException e) {
+                    // The Images service could not read the original, it is probably not a valid image
+                    throw new DataException(415, "invalidImage", "The image cannot be processed");
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot store the resized copies of " + fileName, e);
+            throw new DataException(503, "cannotSaveImage", "The image cannot be saved, please try again");
+        }
+        return servingUrls;
+    }
+
+    // The copies are named after the original file: "{name}-{size}.jpg"
+    private static String getDerivativeName(String fileName, int size) {
+        int extension = fileName.lastIndexOf('.');
+        return (extension > 0 ? fileName.substring(0, extension) : fileName) + "-" + size + ".jpg";
+    }
+
+    /**
+     * @param url The URL of an image
+     * @return The name of the file if the image is stored in our repository, null otherwise
+     */
+    public static String getStoredFileName(String url) {
+        String servingUrl = STORAGE.getServingUrl();
+        if (url == null || !url.startsWith(servingUrl)) {
+            return null;
+        }
+        return url.substring(servingUrl.length());
+    }
+
+    /**
+     * Release a reference to a stored image, added by saveImage().
+     * The file and its resized copies are only deleted from the storage when nobody references them anymore.
+     * @param fileName The name of the stored image
+     */
     public static void deleteImage(String fileName) throws IOException, DataException {
-        HttpURLConnection connection;
-        URL url = new URL(BUCKET_URL + fileName);
-        connection = (HttpURLConnection)url.openConnection();
-        connection.setRequestMethod("DELETE");
-        connection.setRequestProperty("Content-Length", "0");
-        connection.setUseCaches(false);
-        connection.setDoOutput(true);
-
-        // We check if the API is replying by 200 or 204 for success
-        // Otherwise we retrieve the error message and wrap it in a our DataException
-        if(connection.getResponseCode() >= 400) {
-            String errorMessage = IOUtils.toString(connection.getErrorStream(), "UTF-8");
-            throw new DataException(connection.getResponseCode(), "cannotDeleteImage", errorMessage);
+        if (removeReference(fileName) > 0) {
+            return;
+        }
+        // If a deletion fails, the image stays marked as being deleted: calling this method again finishes it
+        deleteFile(fileName);
+        for (int size : DERIVATIVE_SIZES) {
+            deleteFile(getDerivativeName(fileName, size));
         }
+        finishDeletion(fileName);
+    }
+
+    private static void deleteFile(String fileName) throws IOException {
+        // A file that is already gone is fine (e.g. the copies of an image that could not be resized)
+        STORAGE.delete(fileName);
     }
 }
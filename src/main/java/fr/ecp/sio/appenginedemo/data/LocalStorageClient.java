@@ -0,0 +1,87 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A StorageClient that stores the files in a local directory.
+ * It is a stand-in for the Cloud Storage, e.g. to run the app or measure the uploads without a bucket.
+ * The content type, the cache headers and the permissions are ignored: the files are served as they are by the configured URL.
+ * Note that the App Engine production environment does not allow writing to the file system.
+ */
+public class LocalStorageClient implements StorageClient {
+
+    // The size of the buffer of the written files
+    private final static int BUFFER_SIZE = 256 * 1024;
+
+    private final File mDirectory;
+    private final String mServingUrl;
+
+    public LocalStorageClient(File directory, String servingUrl) {
+        mDirectory = directory;
+        mServingUrl = servingUrl;
+    }
+
+    @Override
+    public OutputStream create(String name, String contentType, String cacheControl, boolean publicRead) throws IOException {
+        final File file = getFile(name);
+        file.getParentFile().mkdirs();
+        // As with the Cloud Storage, the file is only replaced when the stream is closed:
+        // the content is written to a temporary file, then moved to the actual file
+        final File partFile = new File(file.getPath() + ".part");
+        return new FilterOutputStream(new BufferedOutputStream(new FileOutputStream(partFile), BUFFER_SIZE)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                // The default implementation writes the bytes one by one
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        };
+    }
+
+    @Override
+    public InputStream open(String name) throws IOException {
+        return new FileInputStream(getFile(name));
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return getFile(name).isFile();
+    }
+
+    @Override
+    public boolean delete(String name) {
+        return getFile(name).delete();
+    }
+
+    @Override
+    public Image getImage(String name) throws IOException {
+        return ImagesServiceFactory.makeImage(Files.readAllBytes(getFile(name).toPath()));
+    }
+
+    @Override
+    public String getServingUrl() {
+        return mServingUrl;
+    }
+
+    private File getFile(String name) {
+        return new File(mDirectory, name);
+    }
+
+}
@@ -1,9 +1,24 @@
 package fr.ecp.sio.appenginedemo.data;
 
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.gson.annotations.SerializedName;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+import fr.ecp.sio.appenginedemo.model.AuthorSummary;
 import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This is a repository class for the messages.
@@ -18,14 +33,32 @@ public class MessagesRepository {
         ObjectifyService.register(Message.class);
     }
 
+    // The name of the migration that saves again the messages posted before their author and date were indexed,
+    // so that they are found by the indexed queries (see getMessagesByUser())
+    public static final String INDEXES_MIGRATION = "messageIndexes";
+
+    // The name of the migration that writes the copy of the author in the messages posted before the copies existed
+    public static final String AUTHORS_MIGRATION = "messageAuthors";
+
+    // The ids of the new messages, reserved by blocks (see IdAllocator)
+    private static final IdAllocator MESSAGE_IDS = new IdAllocator(
+            Message.class,
+            Long.getLong("federatedbirds.idBlockSize", 1000L)
+    );
+
     public static Message getMessage(long id) {
         // The Objectify library uses common syntax that helps chaining calls (like the Builder pattern)
         // Here we get a static Objectify service instance (ofy), create a query (load), specify a kind of desired results (type) and an id, then execute synchronously with now()
-        return ObjectifyService.ofy()
+        Message message = ObjectifyService.ofy()
                 .load()
                 .type(Message.class)
                 .id(id)
                 .now();
+        // The serializer never loads the author of a legacy message, its copy is set here like for the lists
+        if (message != null) {
+            fillLegacyAuthors(Collections.singletonList(message));
+        }
+        return message;
     }
 
     public static List<Message> getMessages() {
@@ -36,13 +69,218 @@ public class MessagesRepository {
                 .list();
     }
 
+    /**
+     * Get several messages at once, with a single batch get
+     * @param ids The ids of the messages
+     * @return The messages, in the same order as the ids (the ones that do not exist anymore are skipped)
+     */
+    public static List<Message> getMessages(List<Long> ids) {
+        Map<Long, Message> messagesById = ObjectifyService.ofy()
+                .load()
+                .type(Message.class)
+                .ids(ids);
+        List<Message> messages = new ArrayList<>();
+        for (Long id : ids) {
+            Message message = messagesById.get(id);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return fillLegacyAuthors(messages);
+    }
+
+    /**
+     * Set the copy of the author of the messages posted before the copies existed (see AUTHORS_MIGRATION),
+     * loading their authors with a single batch get, so that the messages are written without loading them one by one.
+     * The messages are not saved: the copies are only used to write the response (see MessageAdapter).
+     * @param messages A list of messages about to be written in a response
+     * @return The same list
+     */
+    static List<Message> fillLegacyAuthors(List<Message> messages) {
+        // The same user is often the author of several messages of the list
+        Set<Long> authorIds = new HashSet<>();
+        for (Message message : messages) {
+            if (message.author == null && message.user != null) {
+                authorIds.add(message.user.getKey().getId());
+            }
+        }
+        if (authorIds.isEmpty()) {
+            return messages;
+        }
+        Map<Long, User> authors = ObjectifyService.ofy()
+                .load()
+                .type(User.class)
+                .ids(authorIds);
+        for (Message message : messages) {
+            if (message.author == null && message.user != null) {
+                User user = authors.get(message.user.getKey().getId());
+                // The author may have been deleted meanwhile, only his id is written then
+                if (user != null) {
+                    message.author = new AuthorSummary(user);
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Get the messages written by a user, most recent first.
+     * This is an indexed query (see datastore-indexes.xml), so its cost depends on the size of the page only.
+     * The messages posted before the index existed are only found once they are saved again (see INDEXES_MIGRATION).
+     * @param userId The id of the author
+     * @param limit The maximum number of items to retrieve, optional
+     * @param cursor Optional cursor to get the next items
+     * @return A list of messages with optionally a cursor
+     */
+    public static MessagesList getMessagesByUser(long userId, Integer limit, String cursor) throws DataException {
+        int pageSize = Pagination.getPageSize(limit);
+
+        // We iterate instead of calling list() because we need the iterator to get the cursor at the end of the page
+        QueryResultIterator<Message> iterator = Pagination.page(queryMessagesByUser(userId), pageSize, cursor).iterator();
+        List<Message> messages = new ArrayList<>();
+        while (iterator.hasNext()) {
+            messages.add(iterator.next());
+        }
+
+        return new MessagesList(
+                fillLegacyAuthors(messages),
+                Pagination.getNextCursor(iterator, messages.size(), pageSize)
+        );
+    }
+
+    /**
+     * Get one batch of the messages written by a user during a period, most recent first
+     * @param userId The id of the author
+     * @param from The date of the oldest messages
+     * @param to The date of the most recent messages
+     * @param limit The maximum number of messages retrieved
+     * @param cursor Optional cursor to get the next batch, as returned by the previous call
+     * @return A list of messages with optionally a cursor
+     */
+    public static MessagesList getMessagesByUser(long userId, Date from, Date to, int limit, String cursor) throws DataException {
+        // The inequalities are on the date, which is also the sort order: the (user, -date) index is enough
+        QueryResultIterator<Message> iterator = Pagination.page(
+                queryMessagesByUser(userId).filter("date >=", from).filter("date <=", to),
+                limit,
+                cursor
+        ).iterator();
+        List<Message> messages = new ArrayList<>();
+        while (iterator.hasNext()) {
+            messages.add(iterator.next());
+        }
+
+        return new MessagesList(
+                messages,
+                Pagination.getNextCursor(iterator, messages.size(), limit)
+        );
+    }
+
+    /**
+     * Get all the messages written by a user, most recent first, as a stream (see Pagination.STREAM_MAX_SIZE).
+     * The messages are fetched by batches while the iterator is read, so the whole list is never in memory.
+     * @param userId The id of the author
+     * @param cursor Optional cursor to get the next messages, as returned at the end of the previous stream
+     * @return A stream of messages
+     */
+    public static ResultStream<Message> streamMessagesByUser(long userId, String cursor) throws DataException {
+        return new StreamIterator<Key<Message>, Message>(
+                "messages",
+                Pagination.stream(queryMessagesByUser(userId), cursor)
+        ) {
+            @Override
+            protected List<Message> loadBatch(List<Key<Message>> keys) {
+                // The result is a map by key, we iterate on our keys to keep the order of the query
+                // The messages are only written by the caller, the instances of the session can be given
+                Map<Key<Message>, Message> messagesByKey = ObjectifyService.ofy()
+                        .load()
+                        .keys(keys);
+                List<Message> messages = new ArrayList<>();
+                for (Key<Message> key : keys) {
+                    Message message = messagesByKey.get(key);
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                }
+                // The session is cleared after the batch: the authors must be copied now, not loaded while writing
+                return fillLegacyAuthors(messages);
+            }
+        };
+    }
+
+    // The query of the messages of a user, most recent first
+    static Query<Message> queryMessagesByUser(long userId) {
+        // The user field is a Ref<User>, it is stored (and indexed) as a Key of the user
+        return ObjectifyService.ofy()
+                .load()
+                .type(Message.class)
+                .filter("user", Key.create(User.class, userId))
+                .order("-date");
+    }
+
     public static void insertMessage(Message message) {
+        // Same as below, but we wait for the end of the write
+        insertMessageAsync(message).now();
+    }
+
+    /**
+     * Change the text of a stored message.
+     * The message is read again in a transaction, so a copy of its author written meanwhile is not overwritten (see updateAuthor()).
+     * @param id The id of the message
+     * @param text The new text
+     * @return The updated message, or null if it does not exist
+     */
+    public static Message updateText(final long id, final String text) {
+        Message updated = ObjectifyService.ofy().transact(new Work<Message>() {
+            @Override
+            public Message run() {
+                Message message = ObjectifyService.ofy().load().type(Message.class).id(id).now();
+                if (message != null) {
+                    message.text = text;
+                    ObjectifyService.ofy().save().entity(message);
+                }
+                return message;
+            }
+        });
+        // The copy of a legacy author is only set once the message is saved, so it is not written by this change
+        if (updated != null) {
+            fillLegacyAuthors(Collections.singletonList(updated));
+        }
+        return updated;
+    }
+
+    /**
+     * Persist a message without waiting for the datastore: the write runs in the background while the caller goes on.
+     * The message has its id as soon as this method returns.
+     * The caller must call now() on the result before responding, to make sure that the message has been written.
+     * @param message The message to save
+     * @return The pending result of the write
+     */
+    public static Result<Key<Message>> insertMessageAsync(Message message) {
+        // A new message gets its id from our allocator, so we don't need the result of the save to know it
+        if (message.id == null) {
+            message.id = MESSAGE_IDS.nextId();
+        }
         // Persisting an entity is just a save() query
-        message.id = ObjectifyService.ofy()
+        // Without now(), Objectify starts the call and returns immediately
+        return ObjectifyService.ofy()
                 .save()
-                .entity(message)
-                .now()
-                .getId();
+                .entity(message);
+    }
+
+    /**
+     * Persist several new messages with a single batch write, without waiting for the datastore (see insertMessageAsync())
+     * @param messages The messages to save, at most 500
+     * @return The pending result of the write
+     */
+    public static Result<Map<Key<Message>, Message>> insertMessagesAsync(List<Message> messages) {
+        for (Message message : messages) {
+            if (message.id == null) {
+                message.id = MESSAGE_IDS.nextId();
+            }
+        }
+        return ObjectifyService.ofy()
+                .save()
+                .entities(messages);
     }
 
     public static void deleteMessage(long id) {
@@ -53,4 +291,177 @@ public class MessagesRepository {
                 .now();
     }
 
+    /**
+     * Delete one batch of the messages of a user, with a single batch delete
+     * A keys-only query is enough: the messages themselves are never loaded
+     * @param userId The id of the author of the messages
+     * @param limit The maximum number of messages deleted
+     * @param cursor Optional cursor to delete the next batch, as returned by the previous call
+     * @return A cursor to delete the next batch, or null if there are no more messages
+     */
+    public static String deleteMessagesByUser(long userId, int limit, String cursor) throws DataException {
+        // The messages are filtered by author only, so the query doesn't need the composite index
+        QueryResultIterator<Key<Message>> iterator = Pagination.page(
+                ObjectifyService.ofy()
+                        .load()
+                        .type(Message.class)
+                        .filter("user", Key.create(User.class, userId)),
+                limit,
+                cursor
+        ).keys().iterator();
+
+        List<Key<Message>> keys = new ArrayList<>();
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        ObjectifyService.ofy()
+                .delete()
+                .keys(keys)
+                .now();
+
+        return Pagination.getNextCursor(iterator, keys.size(), limit);
+    }
+
+    /**
+     * Replace the copy of the author in one batch of the messages of a user
+     * Each message is updated in its own transaction, so a change made to it meanwhile is not overwritten
+     * @param author The new copy of the author
+     * @param limit The maximum number of messages updated
+     * @param cursor Optional cursor to update the next batch, as returned by the previous call
+     * @return A cursor to update the next batch, or null if there are no more messages
+     */
+    public static String updateAuthor(AuthorSummary author, int limit, String cursor) throws DataException {
+        // A keys-only query is enough, each message is read again in its transaction
+        QueryResultIterator<Key<Message>> iterator = Pagination.page(
+                ObjectifyService.ofy()
+                        .load()
+                        .type(Message.class)
+                        .filter("user", Key.create(User.class, author.id)),
+                limit,
+                cursor
+        ).keys().iterator();
+
+        int count = 0;
+        while (iterator.hasNext()) {
+            setAuthor(iterator.next(), author, true);
+            count++;
+        }
+        return Pagination.getNextCursor(iterator, count, limit);
+    }
+
+    /**
+     * Save again one batch of the messages, for the messages posted before their indexes existed (see INDEXES_MIGRATION)
+     * The datastore only indexes an entity when it is written: until then, these messages are missing from the indexed queries.
+     * Each message is saved in its own transaction, so a change made to it meanwhile is not overwritten
+     * @param limit The maximum number of messages handled
+     * @param cursor Optional cursor to handle the next batch, as returned by the previous call
+     * @return A cursor to handle the next batch, or null if there are no more messages
+     */
+    public static String reindexMessages(int limit, String cursor) throws DataException {
+        // A keys-only query is enough, each message is read again in its transaction
+        QueryResultIterator<Key<Message>> iterator = Pagination.page(
+                ObjectifyService.ofy()
+                        .load()
+                        .type(Message.class),
+                limit,
+                cursor
+        ).keys().iterator();
+
+        int count = 0;
+        while (iterator.hasNext()) {
+            final Key<Message> key = iterator.next();
+            count++;
+            ObjectifyService.ofy().transact(new VoidWork() {
+                @Override
+                public void vrun() {
+                    Message message = ObjectifyService.ofy().load().key(key).now();
+                    if (message != null) {
+                        ObjectifyService.ofy().save().entity(message);
+                    }
+                }
+            });
+        }
+        return Pagination.getNextCursor(iterator, count, limit);
+    }
+
+    /**
+     * Write the copy of the author in one batch of the messages posted before the copies existed (see AUTHORS_MIGRATION)
+     * @param limit The maximum number of messages handled
+     * @param cursor Optional cursor to handle the next batch, as returned by the previous call
+     * @return A cursor to handle the next batch, or null if there are no more messages
+     */
+    public static String backfillAuthors(int limit, String cursor) throws DataException {
+        // The datastore cannot query a missing property: all the messages are read, and only the ones without copy are updated
+        QueryResultIterator<Message> iterator = Pagination.page(
+                ObjectifyService.ofy()
+                        .load()
+                        .type(Message.class),
+                limit,
+                cursor
+        ).iterator();
+
+        int count = 0;
+        List<Message> messages = new ArrayList<>();
+        // The same user is often the author of several messages of the batch
+        Set<Long> authorIds = new HashSet<>();
+        while (iterator.hasNext()) {
+            Message message = iterator.next();
+            count++;
+            if (message.author == null && message.user != null) {
+                messages.add(message);
+                authorIds.add(message.user.getKey().getId());
+            }
+        }
+
+        if (!messages.isEmpty()) {
+            // The authors are read with a single batch get, bypassing the cache of this instance to get their latest version
+            Map<Long, User> authors = ObjectifyService.ofy()
+                    .load()
+                    .type(User.class)
+                    .ids(authorIds);
+            for (Message message : messages) {
+                User user = authors.get(message.user.getKey().getId());
+                // The messages of a deleted user are deleted with him
+                if (user != null) {
+                    // A copy written meanwhile (see RefreshAuthorTask) is more recent than ours: it is kept
+                    setAuthor(Key.create(message), new AuthorSummary(user), false);
+                }
+            }
+        }
+        return Pagination.getNextCursor(iterator, count, limit);
+    }
+
+    // Write the copy of the author in a message, reading it again in a transaction
+    private static void setAuthor(final Key<Message> key, final AuthorSummary author, final boolean overwrite) {
+        ObjectifyService.ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Message message = ObjectifyService.ofy().load().key(key).now();
+                if (message == null || (!overwrite && message.author != null)) {
+                    return;
+                }
+                message.author = author;
+                ObjectifyService.ofy().save().entity(message);
+            }
+        });
+    }
+
+    /**
+     * A list of messages, with optionally a cursor to get the next items
+     */
+    public static class MessagesList {
+
+        public final List<Message> messages;
+
+        // The cursor is sent to the client as the token to use for getting the next page
+        @SerializedName("continuationToken")
+        public final String cursor;
+
+        MessagesList(List<Message> messages, String cursor) {
+            this.messages = messages;
+            this.cursor = cursor;
+        }
+
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import fr.ecp.sio.appenginedemo.model.MigrationStatus;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This is a repository class for the status of the migrations of the existing data (see MigrationTask).
+ */
+public class MigrationsRepository {
+
+    static {
+        ObjectifyService.register(MigrationStatus.class);
+    }
+
+    // A migration never goes back once completed, so the instance remembers the completed ones and stops asking the datastore
+    private static final Set<String> COMPLETED = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param name The name of the migration
+     * @return The status of the migration (never null, a migration that was never started has no dates)
+     */
+    public static MigrationStatus getStatus(String name) {
+        MigrationStatus status = ObjectifyService.ofy()
+                .load()
+                .type(MigrationStatus.class)
+                .id(name)
+                .now();
+        return status != null ? status : new MigrationStatus(name);
+    }
+
+    /**
+     * @param name The name of the migration
+     * @return true if the last batch of the migration has been processed
+     */
+    public static boolean isCompleted(String name) {
+        if (COMPLETED.contains(name)) {
+            return true;
+        }
+        // The status is kept in the memcache (see the @Cache annotation), so this is rarely a call to the datastore
+        if (getStatus(name).completed != null) {
+            COMPLETED.add(name);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record that a migration has been started
+     * A completed migration can be run again (e.g. to repair the data), it stays completed
+     * @param name The name of the migration
+     */
+    public static void setStarted(final String name) {
+        ObjectifyService.ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                MigrationStatus status = getStatus(name);
+                status.started = new Date();
+                ObjectifyService.ofy().save().entity(status);
+            }
+        });
+    }
+
+    /**
+     * Record that the last batch of a migration has been processed
+     * @param name The name of the migration
+     */
+    public static void setCompleted(final String name) {
+        ObjectifyService.ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                MigrationStatus status = getStatus(name);
+                status.completed = new Date();
+                ObjectifyService.ofy().save().entity(status);
+            }
+        });
+        COMPLETED.add(name);
+    }
+
+}
@@ -0,0 +1,69 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Some common helpers used by our repositories to page through the results of a Datastore query.
+ * A page is read with a limit, and the client gets back an opaque continuation token (a Datastore cursor)
+ * that it can send again to read the next page from where the previous one stopped.
+ */
+class Pagination {
+
+    // The number of items returned when the client does not ask for a specific limit
+    static final int DEFAULT_PAGE_SIZE = 20;
+
+    // The server never returns more than this number of items in a single page, whatever the client asks for
+    static final int MAX_PAGE_SIZE = 100;
+
+    // The number of items fetched from the datastore at once when a whole result is streamed instead of paginated
+    static final int STREAM_BATCH_SIZE = 100;
+
+    // A stream never returns more than this number of items: it ends with a continuation token to stream the next ones
+    // It can be configured with a system property in appengine-web.xml
+    static final int STREAM_MAX_SIZE = Integer.getInteger("federatedbirds.stream.maxSize", 5000);
+
+    // Compute the actual size of the page from the optional limit sent by the client
+    static int getPageSize(Integer limit) {
+        if (limit == null || limit <= 0) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.min(limit, MAX_PAGE_SIZE);
+    }
+
+    // Restrict a query to a single page, optionally starting where the previous page stopped
+    static <T> Query<T> page(Query<T> query, int pageSize, String cursor) throws DataException {
+        query = query.limit(pageSize);
+        if (cursor != null) {
+            try {
+                // The cursor is sent to the client in a "web safe" (URL friendly) string form
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            } catch (IllegalArgumentException e) {
+                throw new DataException(400, "invalidContinuationToken", "Invalid continuation token");
+            }
+        }
+        return query;
+    }
+
+    // Read a single stream from a keys-only query, optionally starting where the previous stream stopped (see StreamIterator)
+    // The cursor of a keys-only query can only be used again with the same query, so the token of a stream only continues a stream
+    static <T> QueryResultIterator<Key<T>> stream(Query<T> query, String cursor) throws DataException {
+        return page(query, STREAM_MAX_SIZE, cursor)
+                .chunk(STREAM_BATCH_SIZE)
+                .keys()
+                .iterator();
+    }
+
+    // Get the cursor to send back to the client once a page has been fully read from the iterator
+    // If the page is not full, we know that there is nothing left and we don't return any cursor
+    static String getNextCursor(QueryResultIterator<?> iterator, int count, int pageSize) {
+        if (count < pageSize) {
+            return null;
+        }
+        Cursor cursor = iterator.getCursor();
+        return cursor != null ? cursor.toWebSafeString() : null;
+    }
+
+}
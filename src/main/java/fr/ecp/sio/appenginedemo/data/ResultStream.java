@@ -0,0 +1,24 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import java.util.Iterator;
+
+/**
+ * A list of results read from the datastore by batches while it is written to the client (see StreamIterator).
+ * A stream stops after Pagination.STREAM_MAX_SIZE results: then it gives a continuation token,
+ * that the client sends again to stream the next results, like the token of a page.
+ * @param <T> The type of the results
+ */
+public interface ResultStream<T> extends Iterator<T> {
+
+    /**
+     * @return The name of the list in the response, the same as in a page of the same results (e.g. "messages")
+     */
+    String getName();
+
+    /**
+     * Only known once the stream has been read to the end.
+     * @return The token to stream the next results, or null if they have all been read
+     */
+    String getContinuationToken();
+
+}
@@ -0,0 +1,57 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.images.Image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The operations needed by our repositories on a file storage.
+ * ImagesRepository only depends on this interface, so the actual storage can be replaced:
+ *  - GcsStorageClient stores the files in a Cloud Storage bucket (the default)
+ *  - LocalStorageClient stores them in a local directory, e.g. to run the app or measure the uploads without the bucket
+ */
+public interface StorageClient {
+
+    /**
+     * Create or replace a file. The content is written to the returned stream,
+     * and the file is only committed when the stream is closed: an upload that is not closed leaves the previous file untouched.
+     * @param name The name of the file
+     * @param contentType The mime type of the content, optional
+     * @param cacheControl The Cache-Control header sent with the file when it is served, optional
+     * @param publicRead true if the file can be downloaded by anybody with its serving URL
+     * @return A stream to write the content of the file
+     */
+    OutputStream create(String name, String contentType, String cacheControl, boolean publicRead) throws IOException;
+
+    /**
+     * @param name The name of a file
+     * @return A stream to read the content of the file
+     */
+    InputStream open(String name) throws IOException;
+
+    /**
+     * @param name The name of a file
+     * @return true if the file exists
+     */
+    boolean exists(String name) throws IOException;
+
+    /**
+     * @param name The name of a file
+     * @return true if the file was deleted, false if it did not exist
+     */
+    boolean delete(String name) throws IOException;
+
+    /**
+     * @param name The name of a file
+     * @return The file as an image of the Images service, that can be transformed (resized, etc.)
+     */
+    Image getImage(String name) throws IOException;
+
+    /**
+     * @return The URL of the public files, to be followed by their name
+     */
+    String getServingUrl();
+
+}
@@ -0,0 +1,79 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.ObjectifyService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The base of our streams: an iterator on the results of a keys-only query, loaded by batches while it is read.
+ * Objectify keeps every loaded entity in its session until the end of the request, so a long stream would fill the memory
+ * even if the response is written as it goes: the session is cleared after each batch, once its items are ready.
+ * The items of a batch must not be the instances of the session anymore after loadBatch() (e.g. copies of the entities),
+ * or they must not be modified by the caller.
+ * @param <S> The type of the results of the query (e.g. Key<User>)
+ * @param <T> The type of the items of the stream (e.g. User)
+ */
+abstract class StreamIterator<S, T> implements ResultStream<T> {
+
+    private final String mName;
+    private final QueryResultIterator<S> mSource;
+    private Iterator<T> mBatch = Collections.emptyIterator();
+
+    // The number of results read from the query, including the skipped ones
+    private int mCount;
+
+    // The query must be limited to Pagination.STREAM_MAX_SIZE results (see Pagination.stream())
+    StreamIterator(String name, QueryResultIterator<S> source) {
+        mName = name;
+        mSource = source;
+    }
+
+    // Load the items of a batch of results of the query (an item may be skipped, e.g. if its entity has been deleted)
+    protected abstract List<T> loadBatch(List<S> results);
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getContinuationToken() {
+        // The query was limited to the maximum size: if it returned as many results, there may be more
+        return Pagination.getNextCursor(mSource, mCount, Pagination.STREAM_MAX_SIZE);
+    }
+
+    @Override
+    public boolean hasNext() {
+        // When the current batch is consumed, load the next one (a batch may be empty if all its items were skipped)
+        while (!mBatch.hasNext() && mSource.hasNext()) {
+            List<S> results = new ArrayList<>();
+            while (results.size() < Pagination.STREAM_BATCH_SIZE && mSource.hasNext()) {
+                results.add(mSource.next());
+            }
+            mCount += results.size();
+            mBatch = loadBatch(results).iterator();
+            // The entities of the previous batches are not needed anymore
+            ObjectifyService.ofy().clear();
+        }
+        return mBatch.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return mBatch.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+}
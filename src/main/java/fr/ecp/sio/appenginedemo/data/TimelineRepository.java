@@ -0,0 +1,107 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.cmd.Query;
+import fr.ecp.sio.appenginedemo.model.TimelineEntry;
+import fr.ecp.sio.appenginedemo.model.User;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * This is a repository class for the home timelines of the users.
+ * The timeline of a user is materialized: it contains an entry for every message of the user and of the users he follows.
+ * Here we use the Datastore from Google Cloud Platform, and we access it using the high-level Objectify library.
+ */
+public class TimelineRepository {
+
+    // A static initializer to register the model class with the Objectify service.
+    // This is required per Objectify documentation.
+    static {
+        ObjectifyService.register(TimelineEntry.class);
+    }
+
+    /**
+     * Get the home timeline of a user, most recent first
+     * @param userId The id of the owner of the timeline
+     * @param limit The maximum number of items to retrieve, optional
+     * @param cursor Optional cursor to get the next items
+     * @return A list of messages with optionally a cursor
+     */
+    public static MessagesRepository.MessagesList getTimeline(long userId, Integer limit, String cursor) throws DataException {
+        int pageSize = Pagination.getPageSize(limit);
+
+        // The entries of the timeline are already sorted by the index, we just read one page of them
+        QueryResultIterator<TimelineEntry> iterator = Pagination.page(queryTimeline(userId), pageSize, cursor).iterator();
+
+        List<Long> messageIds = new ArrayList<>();
+        while (iterator.hasNext()) {
+            messageIds.add(iterator.next().messageId);
+        }
+
+        // Then we load all the messages of the page at once
+        return new MessagesRepository.MessagesList(
+                MessagesRepository.getMessages(messageIds),
+                Pagination.getNextCursor(iterator, messageIds.size(), pageSize)
+        );
+    }
+
+    // The query of the entries of the timeline of a user, most recent first
+    static Query<TimelineEntry> queryTimeline(long userId) {
+        return ObjectifyService.ofy()
+                .load()
+                .type(TimelineEntry.class)
+                .filter("owner", Key.create(User.class, userId))
+                .order("-date");
+    }
+
+    /**
+     * Delete one batch of the entries of the timeline of a user, with a single batch delete
+     * @param userId The id of the owner of the timeline
+     * @param limit The maximum number of entries deleted
+     * @param cursor Optional cursor to delete the next batch, as returned by the previous call
+     * @return A cursor to delete the next batch, or null if there are no more entries
+     */
+    public static String deleteTimeline(long userId, int limit, String cursor) throws DataException {
+        QueryResultIterator<Key<TimelineEntry>> iterator = Pagination.page(
+                ObjectifyService.ofy()
+                        .load()
+                        .type(TimelineEntry.class)
+                        .filter("owner", Key.create(User.class, userId)),
+                limit,
+                cursor
+        ).keys().iterator();
+
+        List<Key<TimelineEntry>> keys = new ArrayList<>();
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        ObjectifyService.ofy()
+                .delete()
+                .keys(keys)
+                .now();
+
+        return Pagination.getNextCursor(iterator, keys.size(), limit);
+    }
+
+    /**
+     * Add a message to the timelines of several users, with a single batch write
+     * @param ownerIds The ids of the owners of the timelines
+     * @param messageId The id of the message
+     * @param date The date of the message, used to sort the timelines
+     */
+    public static void addToTimelines(List<Long> ownerIds, long messageId, Date date) {
+        List<TimelineEntry> entries = new ArrayList<>();
+        for (long ownerId : ownerIds) {
+            entries.add(new TimelineEntry(ownerId, messageId, date));
+        }
+        ObjectifyService.ofy()
+                .save()
+                .entities(entries)
+                .now();
+    }
+
+}
@@ -0,0 +1,350 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.googlecode.objectify.cmd.Query;
+import fr.ecp.sio.appenginedemo.model.Celebrity;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.TimelineEntry;
+import fr.ecp.sio.appenginedemo.tasks.CelebrityBackfillTask;
+import fr.ecp.sio.appenginedemo.utils.TokenUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * This service builds the home timeline of a user when it is read.
+ * The "read" timeline merges the messages of all the followed users, nothing is written when a message is posted.
+ * Otherwise, most messages are copied into the timelines of the followers of their author when they are posted (see FanOutTask),
+ * but the messages of the authors with too many followers are not: they are merged with the materialized timeline
+ * when it is read ("hybrid" timeline). Each source is a query on an index sorted by date (most recent first),
+ * and the sources are merged with a heap, like a k-way merge sort, until the page is full.
+ * For the hybrid timeline, the number of sources depends on the number of followed celebrities only,
+ * never on the total number of followed users, and each source is fetched in small chunks, so the cost of a page depends on the size of the page.
+ */
+public class TimelineService {
+
+    // The authors with more followers than this threshold are not fanned out on write
+    // It can be configured with a system property in appengine-web.xml
+    private static final long CELEBRITY_THRESHOLD = Long.getLong("federatedbirds.celebrityThreshold", 10000L);
+
+    // The number of messages fetched at once by each source: most sources only contribute a few messages to a page
+    private static final int SOURCE_CHUNK_SIZE = 10;
+
+    // The number of relationships read at once when listing all the followed users
+    private static final int FOLLOWED_BATCH_SIZE = 1000;
+
+    // The order of the merged timeline: most recent first, then by id, as the datastore sorts equal dates by key
+    private static final Comparator<Head> HEAD_COMPARATOR = new Comparator<Head>() {
+        @Override
+        public int compare(Head head1, Head head2) {
+            int result = head2.date.compareTo(head1.date);
+            if (result == 0) {
+                result = Long.compare(head1.messageId, head2.messageId);
+            }
+            return result;
+        }
+    };
+
+    /**
+     * Called once for each message posted, to decide how it reaches the timelines of the followers.
+     * An author who is not fanned out on write is marked as a celebrity (see Celebrity),
+     * and the readers of the hybrid timeline merge the messages of the marked authors they follow.
+     * The decision is kept in the memcache for a while: most of the time, this is a single memcache get.
+     * When it has expired, the followers of the author are counted again, and he is marked or unmarked if needed.
+     * When he is unmarked, the messages he posted as a celebrity are copied into the timelines by a background task.
+     * @param authorId The id of the author of a message
+     * @return true if the message must be copied into the timelines of the followers when it is posted
+     */
+    public static boolean isFannedOutOnWrite(long authorId) {
+        Boolean celebrity = CelebritiesRepository.getCachedStatus(authorId);
+        if (celebrity == null) {
+            celebrity = UsersRepository.getFollowersCount(authorId) > CELEBRITY_THRESHOLD;
+            Celebrity changed = CelebritiesRepository.setCelebrity(authorId, celebrity);
+            // The messages he posted as a celebrity are copied now, then his marker is deleted
+            if (changed != null && !celebrity) {
+                CelebrityBackfillTask.enqueue(changed);
+            }
+        }
+        return !celebrity;
+    }
+
+    /**
+     * Get the home timeline of a user by merging his materialized timeline with the messages of the followed users
+     * that are not fanned out on write, most recent first
+     * @param userId The id of the owner of the timeline
+     * @param limit The maximum number of items to retrieve, optional
+     * @param cursor Optional cursor to get the next items, as returned with the previous page
+     * @return A list of messages with optionally a cursor
+     */
+    public static MessagesRepository.MessagesList getHybridTimeline(long userId, Integer limit, String cursor) throws DataException {
+        // Each page starts below the last message of the previous one
+        Watermark watermark = cursor != null ? decodeWatermark(userId, cursor) : null;
+        Date maxDate = watermark != null ? watermark.date : null;
+
+        // The celebrities are few, we don't need to read all the users followed by the user:
+        // we check which ones he follows with a single batch get on the relationships
+        // They are listed again for each page, so a celebrity followed meanwhile is merged from the next page
+        // We open all the queries before reading any of them, so the datastore can run them in parallel
+        List<Source<?>> sources = new ArrayList<>();
+        sources.add(new TimelineSource(userId, maxDate));
+        Map<Long, Date> celebrities = CelebritiesRepository.getCelebrities();
+        for (long celebrityId : UsersRepository.getFollowedIds(userId, celebrities.keySet())) {
+            // The messages posted by a former celebrity since he was unmarked are in the materialized timeline
+            Date until = celebrities.get(celebrityId);
+            Date sourceMaxDate = until != null && (maxDate == null || until.before(maxDate)) ? until : maxDate;
+            sources.add(new MessagesSource(celebrityId, sourceMaxDate));
+        }
+
+        return merge(userId, sources, watermark, Pagination.getPageSize(limit));
+    }
+
+    /**
+     * Get the home timeline of a user by merging the messages of the user and of all the users he follows, most recent first.
+     * Nothing is materialized: this costs one query per followed user for each page, but the timeline is always complete and up to date.
+     * @param userId The id of the owner of the timeline
+     * @param limit The maximum number of items to retrieve, optional
+     * @param cursor Optional cursor to get the next items, as returned with the previous page
+     * @return A list of messages with optionally a cursor
+     */
+    public static MessagesRepository.MessagesList getMergedTimeline(long userId, Integer limit, String cursor) throws DataException {
+        // Each page starts below the last message of the previous one, whatever the number of sources
+        Watermark watermark = cursor != null ? decodeWatermark(userId, cursor) : null;
+        Date maxDate = watermark != null ? watermark.date : null;
+
+        // We open all the queries before reading any of them, so the datastore can run them in parallel
+        List<Source<?>> sources = new ArrayList<>();
+        sources.add(new MessagesSource(userId, maxDate));
+        for (long followedId : getAllFollowedIds(userId)) {
+            sources.add(new MessagesSource(followedId, maxDate));
+        }
+
+        return merge(userId, sources, watermark, Pagination.getPageSize(limit));
+    }
+
+    // Get the ids of all the users followed by a user, reading the relationships by batches
+    private static List<Long> getAllFollowedIds(long userId) throws DataException {
+        List<Long> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            UsersRepository.IdsList followed = UsersRepository.getUserFollowedIds(userId, FOLLOWED_BATCH_SIZE, cursor);
+            ids.addAll(followed.ids);
+            cursor = followed.cursor;
+        } while (cursor != null);
+        return ids;
+    }
+
+    // Merge the given sources, starting below the given watermark, until the page is full
+    private static MessagesRepository.MessagesList merge(long userId, List<Source<?>> sources, Watermark watermark, int pageSize) {
+        // The heap always contains the next message of each source that is not exhausted
+        PriorityQueue<Head> heads = new PriorityQueue<>(sources.size(), HEAD_COMPARATOR);
+        for (Source<?> source : sources) {
+            Head head = source.next();
+            if (head != null) {
+                heads.add(head);
+            }
+        }
+
+        // Take the most recent message until the page is full, and replace it by the next one from the same source
+        List<Head> page = new ArrayList<>();
+        while (page.size() < pageSize && !heads.isEmpty()) {
+            Head head = heads.poll();
+            Head next = head.source.next();
+            if (next != null) {
+                heads.add(next);
+            }
+
+            // The queries start at the date of the watermark: the messages with this date that were on the previous pages come again
+            if (watermark != null && head.date.getTime() == watermark.date.getTime() && head.messageId <= watermark.messageId) {
+                continue;
+            }
+            // A message of an author who became a celebrity may be both in the materialized timeline and in his own source,
+            // we only keep it once: both copies have the same date and id, so they always come out of the heap one after the other
+            // (the copy that comes at the top of the next page is skipped with the watermark above)
+            if (!page.isEmpty() && page.get(page.size() - 1).messageId == head.messageId) {
+                continue;
+            }
+            page.add(head);
+        }
+
+        // The token of the next page is the position of the last message of this one
+        // If the page is not full, we know that all the sources are exhausted and we don't return any token
+        String nextCursor = null;
+        if (page.size() == pageSize) {
+            Head last = page.get(page.size() - 1);
+            nextCursor = encodeWatermark(userId, new Watermark(last.date, last.messageId));
+        }
+
+        return new MessagesRepository.MessagesList(getMessages(page), nextCursor);
+    }
+
+    // Get the messages of the page, loading the ones that only come from the materialized timeline with a single batch get
+    // The authors of the legacy messages of all the sources are then loaded with another one
+    private static List<Message> getMessages(List<Head> page) {
+        List<Long> missingIds = new ArrayList<>();
+        for (Head head : page) {
+            if (head.message == null) {
+                missingIds.add(head.messageId);
+            }
+        }
+        Map<Long, Message> loaded = new LinkedHashMap<>();
+        for (Message message : MessagesRepository.getMessages(missingIds)) {
+            loaded.put(message.id, message);
+        }
+
+        List<Message> messages = new ArrayList<>();
+        for (Head head : page) {
+            Message message = head.message != null ? head.message : loaded.get(head.messageId);
+            // A message may have been deleted since it was added to the timeline
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return MessagesRepository.fillLegacyAuthors(messages);
+    }
+
+    // The watermark is written as "{date}-{messageId}", the date in milliseconds
+    // Whatever the number of sources, the token has the same small size
+    // The token is signed with the id of its owner, so it cannot be forged nor used by another user
+    private static String encodeWatermark(long userId, Watermark watermark) {
+        String payload = watermark.date.getTime() + "-" + watermark.messageId;
+        return payload + "." + TokenUtils.sign(userId + "." + payload);
+    }
+
+    private static Watermark decodeWatermark(long userId, String token) throws DataException {
+        // The signature is web safe Base64, so it never contains the separator
+        int signatureIndex = token.lastIndexOf('.');
+        if (signatureIndex < 0) {
+            throw new DataException(400, "invalidContinuationToken", "Invalid continuation token");
+        }
+        String payload = token.substring(0, signatureIndex);
+        if (!TokenUtils.verify(userId + "." + payload, token.substring(signatureIndex + 1))) {
+            throw new DataException(400, "invalidContinuationToken", "Invalid continuation token");
+        }
+        try {
+            int separator = payload.indexOf('-');
+            return new Watermark(
+                    new Date(Long.parseLong(payload.substring(0, separator))),
+                    Long.parseLong(payload.substring(separator + 1))
+            );
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new DataException(400, "invalidContinuationToken", "Invalid continuation token");
+        }
+    }
+
+    // The position of the last message of a page: the next page starts right below it
+    private static class Watermark {
+
+        private final Date date;
+        private final long messageId;
+
+        private Watermark(Date date, long messageId) {
+            this.date = date;
+            this.messageId = messageId;
+        }
+
+    }
+
+    // One of the merged queries, starting at the date of the watermark
+    private abstract static class Source<T> {
+
+        private final Iterator<T> iterator;
+
+        // The next messages of the source that have the same date, sorted like the merged timeline
+        // The datastore sorts the messages with the same date by key, which is not always the order of their ids
+        // (e.g. the keys of the timeline entries are strings), and many messages have the same date when they are posted at once
+        private final ArrayDeque<Head> sameDate = new ArrayDeque<>();
+
+        // The first message read after the messages with the same date, that has another date
+        private Head following;
+
+        private Source(Query<T> query, Date maxDate) {
+            if (maxDate != null) {
+                query = query.filter("date <=", maxDate);
+            }
+            // A source never needs to provide more than a page, and most of the time it provides far less:
+            // we fetch small chunks so that we don't load messages that will not be used
+            this.iterator = query.chunk(SOURCE_CHUNK_SIZE).iterator();
+        }
+
+        // Build the head of the heap for an item of the query
+        protected abstract Head createHead(T item);
+
+        // Get the next message of the source, or null if there is none
+        private Head next() {
+            if (sameDate.isEmpty()) {
+                Head head = following != null ? following : read();
+                if (head == null) {
+                    return null;
+                }
+                List<Head> heads = new ArrayList<>();
+                heads.add(head);
+                following = read();
+                while (following != null && following.date.getTime() == head.date.getTime()) {
+                    heads.add(following);
+                    following = read();
+                }
+                Collections.sort(heads, HEAD_COMPARATOR);
+                sameDate.addAll(heads);
+            }
+            return sameDate.poll();
+        }
+
+        private Head read() {
+            return iterator.hasNext() ? createHead(iterator.next()) : null;
+        }
+
+    }
+
+    // The messages written by a user
+    private static class MessagesSource extends Source<Message> {
+
+        private MessagesSource(long userId, Date maxDate) {
+            super(MessagesRepository.queryMessagesByUser(userId), maxDate);
+        }
+
+        @Override
+        protected Head createHead(Message message) {
+            return new Head(this, message.id, message.date, message);
+        }
+
+    }
+
+    // The materialized timeline of a user: only the ids of the messages are known, they are loaded at the end
+    private static class TimelineSource extends Source<TimelineEntry> {
+
+        private TimelineSource(long userId, Date maxDate) {
+            super(TimelineRepository.queryTimeline(userId), maxDate);
+        }
+
+        @Override
+        protected Head createHead(TimelineEntry entry) {
+            return new Head(this, entry.messageId, entry.date, null);
+        }
+
+    }
+
+    // The next message of a source, waiting in the heap
+    private static class Head {
+
+        private final Source<?> source;
+        private final long messageId;
+        private final Date date;
+        private final Message message;
+
+        private Head(Source<?> source, long messageId, Date date, Message message) {
+            this.source = source;
+            this.messageId = messageId;
+            this.date = date;
+            this.message = message;
+        }
+
+    }
+
+}
@@ -1,10 +1,34 @@
 package fr.ecp.sio.appenginedemo.data;
 
-import com.googlecode.objectify.ObjectifyFactory;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.gson.annotations.SerializedName;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.impl.EntityMemcacheStats;
+import fr.ecp.sio.appenginedemo.model.CacheStats;
+import fr.ecp.sio.appenginedemo.model.Follow;
+import fr.ecp.sio.appenginedemo.model.FollowCount;
 import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.model.UserEmail;
+import fr.ecp.sio.appenginedemo.model.UserLogin;
+import fr.ecp.sio.appenginedemo.utils.LruCache;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
 
 /**
  * This is a repository class for the users.
@@ -17,29 +41,272 @@ public class UsersRepository {
     // This is required per Objectify documentation.
     static {
         ObjectifyService.register(User.class);
+        ObjectifyService.register(Follow.class);
+        ObjectifyService.register(FollowCount.class);
+        ObjectifyService.register(UserLogin.class);
+        ObjectifyService.register(UserEmail.class);
     }
 
-    public static User getUserByLogin(final String login) {
-        // We can add filter of a property if this property has the @Index annotation in the model class
-        // first() returns only one result
-        return ObjectifyService.ofy()
+    // The ids of the new users
+    private static final IdAllocator USER_IDS = new IdAllocator(
+            User.class,
+            Long.getLong("federatedbirds.idBlockSize", 1000L)
+    );
+
+    // The migration that creates the lookup entities of the users registered before they existed (see MigrationTask)
+    // Until it has completed, the logins and emails are also looked for with queries
+    public static final String LOOKUPS_MIGRATION = "userLookups";
+
+    // The migration that adds to the follow counters the relationships created before the counters existed (see Follow.counted)
+    // The counters written before they were sharded are not read anymore, their relationships are counted again in the shards
+    public static final String FOLLOW_COUNTS_MIGRATION = "followCounts";
+
+    // The number of shards of the follow counters of each user (see FollowCount)
+    // It can be configured with a system property in appengine-web.xml, but only increased: the shards above are not read
+    private static final int FOLLOW_COUNT_SHARDS = Integer.getInteger("federatedbirds.followCount.shards", 10);
+
+    private static final Logger LOGGER = Logger.getLogger(UsersRepository.class.getSimpleName());
+
+    // The users recently read by this instance (L1 cache)
+    // The time to live is short, as the other instances don't tell us when they modify a user
+    private static final LruCache<Long, User> USERS_CACHE = new LruCache<>(
+            "users",
+            Integer.getInteger("federatedbirds.userCache.size", 1000),
+            Long.getLong("federatedbirds.userCache.ttlSeconds", 10L) * 1000
+    );
+
+    /**
+     * Get a user from his login, with a get by key on the lookup entities (see UserLogin)
+     * @param login The login of the user
+     * @return The user, or null if there is no user with this login
+     */
+    public static User getUserByLogin(String login) {
+        if (login == null) {
+            return null;
+        }
+        UserLogin userLogin = ObjectifyService.ofy()
                 .load()
-                .type(User.class)
-                .filter("login", login)
-                .first()
+                .type(UserLogin.class)
+                .id(normalize(login))
                 .now();
+        return getUserByLookup(userLogin != null ? userLogin.userId : null, "login", login);
     }
 
-    public static User getUserByEmail(final String email) {
-        return ObjectifyService.ofy()
+    /**
+     * Get a user from his email, with a get by key on the lookup entities (see UserEmail)
+     * @param email The email of the user
+     * @return The user, or null if there is no user with this email
+     */
+    public static User getUserByEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        UserEmail userEmail = ObjectifyService.ofy()
                 .load()
-                .type(User.class)
-                .filter("email", email)
-                .first()
+                .type(UserEmail.class)
+                .id(normalize(email))
                 .now();
+        return getUserByLookup(userEmail != null ? userEmail.userId : null, "email", email);
+    }
+
+    // Get the user found by a lookup entity, or by a query on the property for the users who don't have their lookup entities yet
+    private static User getUserByLookup(Long lookupUserId, String property, String value) {
+        if (lookupUserId != null) {
+            User user = getUser(lookupUserId);
+            // Two users registered before the lookup entities may have values that only differ by case ("John" and "john"):
+            // only one of them got the lookup entity (see reserveLookups()), the other one is found with his exact value
+            if (user != null && !value.equals(getProperty(user, property))) {
+                User exactUser = ObjectifyService.ofy()
+                        .load()
+                        .type(User.class)
+                        .filter(property, value)
+                        .first()
+                        .now();
+                if (exactUser != null) {
+                    return copyUser(exactUser);
+                }
+            }
+            return user;
+        }
+
+        // The users registered before the lookup entities existed can only be found with a query on the property
+        // We take this opportunity to create their lookup entities
+        User user = findLegacyUser(property, value);
+        if (user != null) {
+            reserveLookups(user.id);
+        }
+        return user;
+    }
+
+    private static String getProperty(User user, String property) {
+        return property.equals("login") ? user.login : user.email;
+    }
+
+    // Find a user with a query on his login or email, as long as some users may have no lookup entities (see LOOKUPS_MIGRATION)
+    // The query is case-sensitive, so we try the value as given and normalized (the most common forms)
+    private static User findLegacyUser(String property, String value) {
+        if (value == null || MigrationsRepository.isCompleted(LOOKUPS_MIGRATION)) {
+            return null;
+        }
+        Set<String> candidates = new LinkedHashSet<>(Arrays.asList(value, value.trim(), normalize(value)));
+        for (String candidate : candidates) {
+            User user = ObjectifyService.ofy()
+                    .load()
+                    .type(User.class)
+                    .filter(property, candidate)
+                    .first()
+                    .now();
+            if (user != null) {
+                return copyUser(user);
+            }
+        }
+        return null;
+    }
+
+    // Create the lookup entities of a user who doesn't have them yet
+    // The user is read again in the transaction: if he is changing his login at the same time, we don't reserve the previous one
+    // A login or an email already reserved by another user (same value with another case) is left to him, and logged
+    private static void reserveLookups(final long id) {
+        ObjectifyService.ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Objectify ofy = ObjectifyService.ofy();
+                User user = ofy.load().type(User.class).id(id).now();
+                if (user == null) {
+                    return;
+                }
+                List<Object> toSave = new ArrayList<>();
+                if (user.login != null) {
+                    UserLogin userLogin = ofy.load().type(UserLogin.class).id(normalize(user.login)).now();
+                    if (userLogin == null) {
+                        toSave.add(new UserLogin(normalize(user.login), user.id));
+                    } else if (userLogin.userId != user.id) {
+                        LOGGER.warning("The login of user " + user.id + " is already reserved by user " + userLogin.userId);
+                    }
+                }
+                if (user.email != null) {
+                    UserEmail userEmail = ofy.load().type(UserEmail.class).id(normalize(user.email)).now();
+                    if (userEmail == null) {
+                        toSave.add(new UserEmail(normalize(user.email), user.id));
+                    } else if (userEmail.userId != user.id) {
+                        LOGGER.warning("The email of user " + user.id + " is already reserved by user " + userEmail.userId);
+                    }
+                }
+                ofy.save().entities(toSave);
+            }
+        });
+    }
+
+    /**
+     * Create the lookup entities of one batch of users, for the users registered before they existed (see LOOKUPS_MIGRATION)
+     * Each user is handled in its own transaction
+     * @param limit The maximum number of users handled
+     * @param cursor Optional cursor to handle the next batch, as returned by the previous call
+     * @return A cursor to handle the next batch, or null if there are no more users
+     */
+    public static String backfillLookups(int limit, String cursor) throws DataException {
+        // A keys-only query is enough, each user is read again in its transaction
+        QueryResultIterator<Key<User>> iterator = Pagination.page(
+                ObjectifyService.ofy()
+                        .load()
+                        .type(User.class),
+                limit,
+                cursor
+        ).keys().iterator();
+
+        int count = 0;
+        while (iterator.hasNext()) {
+            reserveLookups(iterator.next().getId());
+            count++;
+        }
+        return Pagination.getNextCursor(iterator, count, limit);
     }
 
+    // The logins and emails are compared without case and surrounding spaces ("John" and "john " are the same login)
+    // A missing value stays null (e.g. the email of a user created before it was required)
+    private static String normalize(String value) {
+        return value != null ? value.trim().toLowerCase(Locale.ROOT) : null;
+    }
+
+    /**
+     * Get a user by id. This is called by every authenticated request, so the users are cached on two levels:
+     *  - the instance keeps the most recently used users in memory for a few seconds (L1, see USERS_CACHE)
+     *  - Objectify keeps them in the memcache, shared by all the instances (L2, see the @Cache annotation on User)
+     * The caller gets its own copy of the user, that it can modify without changing the cached one.
+     * @param id The id of the user
+     * @return The user, or null if there is no user with this id
+     */
     public static User getUser(long id) {
+        User user = USERS_CACHE.get(id);
+        if (user != null) {
+            return copyUser(user);
+        }
+
+        long start = System.nanoTime();
+        user = ObjectifyService.ofy()
+                .load()
+                .type(User.class)
+                .id(id)
+                .now();
+        USERS_CACHE.recordLoad(System.nanoTime() - start);
+
+        if (user == null) {
+            return null;
+        }
+        // The loaded user is the instance of the Objectify session: neither the cache nor the caller keep it
+        USERS_CACHE.put(id, copyUser(user));
+        return copyUser(user);
+    }
+
+    /**
+     * Get several users by id at once: the users that are not in the cache of this instance are loaded with a single batch get.
+     * As with getUser(), the caller gets its own copies of the users.
+     * @param ids The ids of the users
+     * @return The users, in the order of the ids (the ids without user are skipped)
+     */
+    public static List<User> getUsers(Collection<Long> ids) {
+        Map<Long, User> users = new HashMap<>();
+        List<Long> missingIds = new ArrayList<>();
+        for (long id : ids) {
+            User user = USERS_CACHE.get(id);
+            if (user != null) {
+                users.put(id, copyUser(user));
+            } else {
+                missingIds.add(id);
+            }
+        }
+
+        if (!missingIds.isEmpty()) {
+            long start = System.nanoTime();
+            Map<Long, User> loaded = ObjectifyService.ofy()
+                    .load()
+                    .type(User.class)
+                    .ids(missingIds);
+            USERS_CACHE.recordLoad(System.nanoTime() - start);
+            // The loaded users are the instances of the Objectify session: neither the cache nor the caller keep them
+            for (User user : loaded.values()) {
+                USERS_CACHE.put(user.id, copyUser(user));
+                users.put(user.id, copyUser(user));
+            }
+        }
+
+        List<User> result = new ArrayList<>();
+        for (long id : ids) {
+            User user = users.get(id);
+            if (user != null) {
+                result.add(user);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get a user by id, bypassing the cache of this instance, for the callers that need the latest version
+     * (the memcache is always up to date, Objectify updates it with the datastore)
+     * @param id The id of the user
+     * @return The user, or null if there is no user with this id
+     */
+    public static User getLatestUser(long id) {
         return ObjectifyService.ofy()
                 .load()
                 .type(User.class)
@@ -48,28 +315,224 @@ public class UsersRepository {
     }
 
     /**
-     * Get all the users from the datastore (usage???)
-     * @param limit The maximum number of items to retrieve, optional
+     * A copy of all the fields of a user, that can be modified without changing the original
+     * Any field added to the model class must be added here too!
+     * @param user The user to copy
+     * @return The copy
+     */
+    public static User copyUser(User user) {
+        User copy = new User();
+        copy.id = user.id;
+        copy.login = user.login;
+        copy.avatar = user.avatar;
+        copy.avatarSizes = user.avatarSizes != null ? new LinkedHashMap<>(user.avatarSizes) : null;
+        copy.coverPicture = user.coverPicture;
+        copy.email = user.email;
+        copy.password = user.password;
+        return copy;
+    }
+
+    /**
+     * @return The statistics of both levels of the cache of the users
+     */
+    public static List<CacheStats> getCacheStats() {
+        List<CacheStats> stats = new ArrayList<>();
+        stats.add(USERS_CACHE.getStats());
+
+        // Objectify counts the hits and misses of its memcache by kind
+        // The memcache is shared by all the instances, but these counters only cover the requests of this instance
+        CacheStats memcacheStats = new CacheStats();
+        memcacheStats.name = "users.memcache";
+        EntityMemcacheStats.Stat stat = ObjectifyService.factory()
+                .getMemcacheStats()
+                .getStats()
+                .get(Key.getKind(User.class));
+        if (stat != null) {
+            memcacheStats.hits = stat.getHits();
+            memcacheStats.misses = stat.getMisses();
+            long requests = memcacheStats.hits + memcacheStats.misses;
+            memcacheStats.hitRatio = requests > 0 ? (double) memcacheStats.hits / requests : 0;
+        }
+        stats.add(memcacheStats);
+        return stats;
+    }
+
+    /**
+     * Get a page of users from the datastore
+     * As with getUser(), the caller gets its own copies of the users.
+     * @param limit The maximum number of items to retrieve, optional (capped by the server)
      * @param cursor Optional cursor to get the next items
-     * @return All users
+     * @return A list of users with optionally a cursor
      */
-    public static UsersList getUsers(Integer limit, String cursor) {
+    public static UsersList getUsers(Integer limit, String cursor) throws DataException {
+        int pageSize = Pagination.getPageSize(limit);
+
+        // We iterate instead of calling list() because we need the iterator to get the cursor at the end of the page
+        QueryResultIterator<User> iterator = Pagination.page(
+                ObjectifyService.ofy()
+                        .load()
+                        .type(User.class),
+                pageSize,
+                cursor
+        ).iterator();
+
+        List<User> users = new ArrayList<>();
+        while (iterator.hasNext()) {
+            users.add(copyUser(iterator.next()));
+        }
+
         return new UsersList(
-            ObjectifyService.ofy()
-                .load()
-                .type(User.class)
-                .list(),
-            "dummyCursor"
+                users,
+                Pagination.getNextCursor(iterator, users.size(), pageSize)
+        );
+    }
+
+    /**
+     * Get all the users from the datastore as a stream (STREAM_MAX_SIZE users at most).
+     * The users are fetched by batches while the iterator is read, so the whole list is never in memory.
+     * As with getUser(), the caller gets its own copies of the users.
+     * @param cursor Optional cursor to get the next users, as returned at the end of the previous stream
+     * @return A stream of users
+     */
+    public static ResultStream<User> streamUsers(String cursor) throws DataException {
+        return new UsersIterator(
+                Pagination.stream(ObjectifyService.ofy().load().type(User.class), cursor)
         );
     }
 
     public static long allocateNewId() {
-        // Sometime we need to allocate an id before persisting, the library allows it
-        return new ObjectifyFactory().allocateId(User.class).getId();
+        // Sometime we need to allocate an id before persisting
+        // The ids are reserved by blocks, so this usually does not call the datastore (see IdAllocator)
+        return USER_IDS.nextId();
+    }
+
+    /**
+     * Persist a new user into the datastore, with the entities that reserve his login and email.
+     * Everything is written in a single transaction, so two users registering at the same time cannot get the same login or email.
+     * @param user The user to create, with its id
+     */
+    public static void createUser(final User user) throws DataException {
+        // A user registered before the lookup entities may not have his own yet
+        // The query cannot run in the transaction, but these users don't register again: there is no race with them
+        if (findLegacyUser("login", user.login) != null) {
+            throw new DataException(400, "duplicateLogin", "Duplicate login");
+        }
+        if (findLegacyUser("email", user.email) != null) {
+            throw new DataException(400, "duplicateEmail", "Duplicate email");
+        }
+
+        DataException error = ObjectifyService.ofy().transact(new Work<DataException>() {
+            @Override
+            public DataException run() {
+                Objectify ofy = ObjectifyService.ofy();
+                // Both lookup entities are read with a single batch get
+                List<Key<Object>> keys = Arrays.asList(
+                        Key.<Object>create(UserLogin.class, normalize(user.login)),
+                        Key.<Object>create(UserEmail.class, normalize(user.email))
+                );
+                Map<Key<Object>, Object> existing = ofy.load().keys(keys);
+                for (Object entity : existing.values()) {
+                    if (entity instanceof UserLogin) {
+                        return new DataException(400, "duplicateLogin", "Duplicate login");
+                    }
+                    if (entity instanceof UserEmail) {
+                        return new DataException(400, "duplicateEmail", "Duplicate email");
+                    }
+                }
+                ofy.save().entities(
+                        user,
+                        new UserLogin(normalize(user.login), user.id),
+                        new UserEmail(normalize(user.email), user.id)
+                );
+                return null;
+            }
+        });
+        // A checked exception cannot be thrown from the transaction itself, it is returned instead
+        if (error != null) {
+            throw error;
+        }
+        USERS_CACHE.remove(user.id);
+    }
+
+    /**
+     * Persist the changes of an existing user into the datastore.
+     * If his login or email changed, the lookup entities are updated in the same transaction (see createUser()).
+     * @param user The user to save
+     * @param previousLogin The login of the user before the changes, null if he had none
+     * @param previousEmail The email of the user before the changes, null if he had none
+     */
+    public static void updateUser(final User user, final String previousLogin, final String previousEmail) throws DataException {
+        // Same as in createUser() for the users who may not have their lookup entities yet
+        if (user.login != null && !normalize(user.login).equals(normalize(previousLogin))) {
+            User legacyUser = findLegacyUser("login", user.login);
+            if (legacyUser != null && legacyUser.id != user.id) {
+                throw new DataException(400, "duplicateLogin", "Duplicate login");
+            }
+        }
+        if (user.email != null && !normalize(user.email).equals(normalize(previousEmail))) {
+            User legacyUser = findLegacyUser("email", user.email);
+            if (legacyUser != null && legacyUser.id != user.id) {
+                throw new DataException(400, "duplicateEmail", "Duplicate email");
+            }
+        }
+
+        DataException error = ObjectifyService.ofy().transact(new Work<DataException>() {
+            @Override
+            public DataException run() {
+                Objectify ofy = ObjectifyService.ofy();
+                List<Object> toSave = new ArrayList<>();
+                List<Key<?>> toDelete = new ArrayList<>();
+                toSave.add(user);
+
+                String login = normalize(user.login);
+                if (login != null && !login.equals(normalize(previousLogin))) {
+                    UserLogin existing = ofy.load().type(UserLogin.class).id(login).now();
+                    if (existing != null && existing.userId != user.id) {
+                        return new DataException(400, "duplicateLogin", "Duplicate login");
+                    }
+                    toSave.add(new UserLogin(login, user.id));
+                    // A legacy user may share the previous lookup with another one (same login with another case):
+                    // it is deleted only if it is his, or the login would not be reserved for the other user anymore
+                    // There is nothing to move if he had no previous login
+                    if (previousLogin != null) {
+                        UserLogin previous = ofy.load().type(UserLogin.class).id(normalize(previousLogin)).now();
+                        if (previous != null && previous.userId == user.id) {
+                            toDelete.add(Key.create(previous));
+                        }
+                    }
+                }
+
+                String email = normalize(user.email);
+                if (email != null && !email.equals(normalize(previousEmail))) {
+                    UserEmail existing = ofy.load().type(UserEmail.class).id(email).now();
+                    if (existing != null && existing.userId != user.id) {
+                        return new DataException(400, "duplicateEmail", "Duplicate email");
+                    }
+                    toSave.add(new UserEmail(email, user.id));
+                    if (previousEmail != null) {
+                        UserEmail previous = ofy.load().type(UserEmail.class).id(normalize(previousEmail)).now();
+                        if (previous != null && previous.userId == user.id) {
+                            toDelete.add(Key.create(previous));
+                        }
+                    }
+                }
+
+                ofy.save().entities(toSave);
+                ofy.delete().keys(toDelete);
+                return null;
+            }
+        });
+        if (error != null) {
+            throw error;
+        }
+        // Objectify updates the memcache itself, we only have to forget the user in the cache of this instance
+        // The other instances may still return the previous version until their copy expires
+        USERS_CACHE.remove(user.id);
     }
 
     /**
      * Persist a user into the datastore
+     * The login and the email must not have changed, use updateUser() otherwise.
      * @param user The user to save
      */
     public static void saveUser(User user) {
@@ -78,16 +541,56 @@ public class UsersRepository {
                 .entity(user)
                 .now()
                 .getId();
+        // Objectify updates the memcache itself, we only have to forget the user in the cache of this instance
+        // The other instances may still return the previous version until their copy expires
+        USERS_CACHE.remove(user.id);
     }
 
     /**
+     * Delete a user, and the entities that reserve his login and email
      * @param id The id of the user to remove
      */
-    public static void deleteUser(long id) {
+    public static void deleteUser(final long id) {
+        ObjectifyService.ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Objectify ofy = ObjectifyService.ofy();
+                User user = ofy.load().type(User.class).id(id).now();
+                if (user == null) {
+                    return;
+                }
+                List<Key<?>> keys = new ArrayList<>();
+                keys.add(Key.create(User.class, id));
+                // The lookup entities are deleted only if they are his (see updateUser())
+                if (user.login != null) {
+                    UserLogin userLogin = ofy.load().type(UserLogin.class).id(normalize(user.login)).now();
+                    if (userLogin != null && userLogin.userId == id) {
+                        keys.add(Key.create(userLogin));
+                    }
+                }
+                if (user.email != null) {
+                    UserEmail userEmail = ofy.load().type(UserEmail.class).id(normalize(user.email)).now();
+                    if (userEmail != null && userEmail.userId == id) {
+                        keys.add(Key.create(userEmail));
+                    }
+                }
+                ofy.delete().keys(keys);
+            }
+        });
+        USERS_CACHE.remove(id);
+    }
+
+    /**
+     * Delete the counters of followers and followed users of a user, once all his relationships have been removed
+     * @param id The id of the user
+     */
+    public static void deleteFollowCount(long id) {
+        List<Key<?>> keys = new ArrayList<>();
+        keys.addAll(getFollowCountKeys(id));
+        keys.add(getLegacyFollowCountKey(id));
         ObjectifyService.ofy()
                 .delete()
-                .type(User.class)
-                .id(id)
+                .keys(keys)
                 .now();
     }
 
@@ -97,8 +600,9 @@ public class UsersRepository {
      * @param cursor Optional cursor to get the next items
      * @return A list of users with optionally a cursor
      */
-    public static UsersList getUserFollowed(long id, Integer limit, String cursor) {
-        return getUsers(limit, cursor);
+    public static UsersList getUserFollowed(long id, Integer limit, String cursor) throws DataException {
+        // The users followed by "id" are at the other end of the relationships where "id" is the follower
+        return getFollowUsers("follower", id, limit, cursor);
     }
 
     /**
@@ -107,8 +611,128 @@ public class UsersRepository {
      * @param cursor Optional cursor to get the next items
      * @return A list of users with optionally a cursor
      */
-    public static UsersList getUserFollowers(long id, Integer limit, String cursor) {
-        return getUsers(limit, cursor);
+    public static UsersList getUserFollowers(long id, Integer limit, String cursor) throws DataException {
+        // The followers of "id" are at the other end of the relationships where "id" is the followed user
+        return getFollowUsers("followed", id, limit, cursor);
+    }
+
+    // Get a page of the users at the other end of the relationships having the user "id" as the given end ("follower" or "followed")
+    private static UsersList getFollowUsers(String end, long id, Integer limit, String cursor) throws DataException {
+        int pageSize = Pagination.getPageSize(limit);
+
+        // First we read a page of relationships, using the index on the given end
+        QueryResultIterator<Follow> iterator = Pagination.page(
+                ObjectifyService.ofy()
+                        .load()
+                        .type(Follow.class)
+                        .filter(end, Key.create(User.class, id)),
+                pageSize,
+                cursor
+        ).iterator();
+
+        List<Key<User>> keys = new ArrayList<>();
+        while (iterator.hasNext()) {
+            Follow follow = iterator.next();
+            keys.add(end.equals("follower") ? follow.followed : follow.follower);
+        }
+
+        // Then we load all the users of the page at once, with a single batch get
+        // The result is a map by key, we iterate on our keys to keep the order of the relationships
+        Map<Key<User>, User> usersByKey = ObjectifyService.ofy()
+                .load()
+                .keys(keys);
+        List<User> users = new ArrayList<>();
+        for (Key<User> key : keys) {
+            User user = usersByKey.get(key);
+            if (user != null) {
+                users.add(copyUser(user));
+            }
+        }
+
+        return new UsersList(
+                users,
+                Pagination.getNextCursor(iterator, keys.size(), pageSize)
+        );
+    }
+
+    /**
+     * Get the ids of the followers of a user, without loading the users themselves
+     * @param id The id of the user
+     * @param limit The maximum number of items to retrieve
+     * @param cursor Optional cursor to get the next items
+     * @return A list of ids with optionally a cursor
+     */
+    public static IdsList getUserFollowerIds(long id, int limit, String cursor) throws DataException {
+        return getFollowIds("followed", id, limit, cursor);
+    }
+
+    /**
+     * Get the ids of the users followed by a user, without loading the users themselves
+     * @param id The id of the user
+     * @param limit The maximum number of items to retrieve
+     * @param cursor Optional cursor to get the next items
+     * @return A list of ids with optionally a cursor
+     */
+    public static IdsList getUserFollowedIds(long id, int limit, String cursor) throws DataException {
+        return getFollowIds("follower", id, limit, cursor);
+    }
+
+    // Get a page of the ids at the other end of the relationships having the user "id" as the given end ("follower" or "followed")
+    private static IdsList getFollowIds(String end, long id, int limit, String cursor) throws DataException {
+        // A keys-only query is enough, as the id of a relationship contains the ids of both users
+        QueryResultIterator<Key<Follow>> iterator = Pagination.page(
+                ObjectifyService.ofy()
+                        .load()
+                        .type(Follow.class)
+                        .filter(end, Key.create(User.class, id)),
+                limit,
+                cursor
+        ).keys().iterator();
+
+        List<Long> ids = new ArrayList<>();
+        while (iterator.hasNext()) {
+            String followId = iterator.next().getName();
+            ids.add(end.equals("follower") ? Follow.getFollowedId(followId) : Follow.getFollowerId(followId));
+        }
+
+        return new IdsList(
+                ids,
+                Pagination.getNextCursor(iterator, ids.size(), limit)
+        );
+    }
+
+    /**
+     * Get all the users followed by a user as a stream (see streamUsers())
+     * @param id The id of the user
+     * @param cursor Optional cursor to get the next users, as returned at the end of the previous stream
+     * @return A stream of users
+     */
+    public static ResultStream<User> streamUserFollowed(long id, String cursor) throws DataException {
+        return new FollowUsersIterator("follower", id, cursor);
+    }
+
+    /**
+     * Get all the followers of a user as a stream (see streamUsers())
+     * @param id The id of the user
+     * @param cursor Optional cursor to get the next users, as returned at the end of the previous stream
+     * @return A stream of users
+     */
+    public static ResultStream<User> streamUserFollowers(long id, String cursor) throws DataException {
+        return new FollowUsersIterator("followed", id, cursor);
+    }
+
+    /**
+     * @param followerId The id of the follower
+     * @param followedId The id of the followed
+     * @return true if the follower currently follows the followed user
+     */
+    public static boolean isUserFollowed(long followerId, long followedId) {
+        // The id of the relationship is known, so this is a single get by key (no query)
+        return ObjectifyService.ofy()
+                .load()
+                .type(Follow.class)
+                .id(Follow.getId(followerId, followedId))
+                .now() != null;
     }
 
     /**
@@ -117,6 +741,9 @@ public class UsersRepository {
     public static class UsersList {
 
         public final List<User> users;
+
+        // The cursor is sent to the client as the token to use for getting the next page
+        @SerializedName("continuationToken")
         public final String cursor;
 
         private UsersList(List<User> users, String cursor) {
@@ -126,13 +753,236 @@ public class UsersRepository {
 
     }
 
+    /**
+     * An iterator on users given by the keys of a query: the users are loaded by batches with a single get per batch.
+     */
+    private static class UsersIterator extends StreamIterator<Key<User>, User> {
+
+        private UsersIterator(QueryResultIterator<Key<User>> keys) {
+            super("users", keys);
+        }
+
+        @Override
+        protected List<User> loadBatch(List<Key<User>> keys) {
+            return loadUserCopies(keys);
+        }
+
+    }
+
+    // Load the users of a batch of keys with a single get, and return copies of them in the order of the keys
+    // The session is cleared after each batch of a stream: its instances are not given to the caller
+    private static List<User> loadUserCopies(List<Key<User>> keys) {
+        // The result is a map by key, we iterate on our keys to keep the order of the query
+        Map<Key<User>, User> usersByKey = ObjectifyService.ofy()
+                .load()
+                .keys(keys);
+        List<User> users = new ArrayList<>();
+        for (Key<User> key : keys) {
+            User user = usersByKey.get(key);
+            // The users deleted since the query are skipped
+            if (user != null) {
+                users.add(copyUser(user));
+            }
+        }
+        return users;
+    }
+
+    /**
+     * An iterator on the users at the other end of the relationships having the user "id" as the given end ("follower" or "followed").
+     * The relationships are read with a keys-only query, and the users are loaded by batches with a single get per batch.
+     */
+    private static class FollowUsersIterator extends StreamIterator<Key<Follow>, User> {
+
+        private final String mEnd;
+
+        private FollowUsersIterator(String end, long id, String cursor) throws DataException {
+            super("users", Pagination.stream(
+                    ObjectifyService.ofy()
+                            .load()
+                            .type(Follow.class)
+                            .filter(end, Key.create(User.class, id)),
+                    cursor
+            ));
+            mEnd = end;
+        }
+
+        @Override
+        protected List<User> loadBatch(List<Key<Follow>> follows) {
+            // The ids of both users are in the id of the relationship, we don't need to load it
+            List<Key<User>> keys = new ArrayList<>();
+            for (Key<Follow> follow : follows) {
+                String followId = follow.getName();
+                keys.add(Key.create(User.class, mEnd.equals("follower") ? Follow.getFollowedId(followId) : Follow.getFollowerId(followId)));
+            }
+            return loadUserCopies(keys);
+        }
+
+    }
+
+    /**
+     * A list of user ids, with optionally a cursor to get the next items
+     */
+    public static class IdsList {
+
+        public final List<Long> ids;
+        public final String cursor;
+
+        private IdsList(List<Long> ids, String cursor) {
+            this.ids = ids;
+            this.cursor = cursor;
+        }
+
+    }
+
+    /**
+     * @param id The id of the user
+     * @return The number of followers of the user, the sum of all the shards of his counters
+     */
+    public static long getFollowersCount(long id) {
+        long followers = 0;
+        for (FollowCount count : ObjectifyService.ofy().load().keys(getFollowCountKeys(id)).values()) {
+            followers += count.followers;
+        }
+        // The relationships created before the counters are missing until the migration has counted them (see FOLLOW_COUNTS_MIGRATION)
+        // A single shard may be negative (a follow and its unfollow may update different shards), but never the sum:
+        // it is clamped anyway, a negative count would never make sense to the callers
+        return Math.max(0, followers);
+    }
+
+    // The keys of all the shards of the counters of a user
+    private static List<Key<FollowCount>> getFollowCountKeys(long id) {
+        List<Key<FollowCount>> keys = new ArrayList<>();
+        for (int shard = 0; shard < FOLLOW_COUNT_SHARDS; shard++) {
+            keys.add(Key.create(FollowCount.class, FollowCount.getId(id, shard)));
+        }
+        return keys;
+    }
+
+    // The counters of a user were a single entity, with the id of the user, before they were sharded
+    // The key is built from the kind only, as the id of the current FollowCount class is a string
+    private static Key<?> getLegacyFollowCountKey(long id) {
+        return Key.create(KeyFactory.createKey(Key.getKind(FollowCount.class), id));
+    }
+
+    /**
+     * Count one batch of the relationships created before the counters existed (see FOLLOW_COUNTS_MIGRATION)
+     * Each relationship is counted in its own transaction, with the same increments as setUserFollowed():
+     * a follow or an unfollow at the same time is never lost, and a relationship is never counted twice
+     * @param limit The maximum number of relationships handled
+     * @param cursor Optional cursor to handle the next batch, as returned by the previous call
+     * @return A cursor to handle the next batch, or null if there are no more relationships
+     */
+    public static String backfillFollowCounts(int limit, String cursor) throws DataException {
+        // A keys-only query is enough, each relationship is read again in its transaction
+        QueryResultIterator<Key<Follow>> iterator = Pagination.page(
+                ObjectifyService.ofy()
+                        .load()
+                        .type(Follow.class),
+                limit,
+                cursor
+        ).keys().iterator();
+
+        int count = 0;
+        while (iterator.hasNext()) {
+            final Key<Follow> key = iterator.next();
+            count++;
+            ObjectifyService.ofy().transact(new VoidWork() {
+                @Override
+                public void vrun() {
+                    Follow follow = ObjectifyService.ofy().load().key(key).now();
+                    // The relationship may have been removed meanwhile
+                    if (follow == null || follow.counted) {
+                        return;
+                    }
+                    follow.counted = true;
+                    ObjectifyService.ofy().save().entity(follow);
+                    addToCounts(follow.follower.getId(), follow.followed.getId(), 1);
+                }
+            });
+        }
+        return Pagination.getNextCursor(iterator, count, limit);
+    }
+
+    /**
+     * Get the users followed by a user among the given ones, with a single batch get on the relationships
+     * @param followerId The id of the follower
+     * @param ids The ids of the users to check
+     * @return The ids of the users followed by the follower
+     */
+    public static List<Long> getFollowedIds(long followerId, Collection<Long> ids) {
+        List<String> followIds = new ArrayList<>();
+        for (long id : ids) {
+            followIds.add(Follow.getId(followerId, id));
+        }
+        List<Long> followed = new ArrayList<>();
+        for (String followId : ObjectifyService.ofy().load().type(Follow.class).ids(followIds).keySet()) {
+            followed.add(Follow.getFollowedId(followId));
+        }
+        return followed;
+    }
+
     /**
      * @param followerId The id of the follower
      * @param followedId The id of the followed
      * @param followed true to follow, false to unfollow
      */
-    public static void setUserFollowed(long followerId, long followedId, boolean followed) {
-        // Not implemented yet
+    public static void setUserFollowed(final long followerId, final long followedId, final boolean followed) {
+        // The relationship and the counters of both users must stay consistent, so they are updated in a single transaction
+        ObjectifyService.ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Objectify ofy = ObjectifyService.ofy();
+
+                // Nothing to do if the relationship is already in the requested state
+                Follow follow = ofy.load()
+                        .type(Follow.class)
+                        .id(Follow.getId(followerId, followedId))
+                        .now();
+                if ((follow != null) == followed) {
+                    return;
+                }
+
+                if (followed) {
+                    follow = new Follow(followerId, followedId);
+                    follow.counted = true;
+                    ofy.save().entity(follow);
+                } else {
+                    ofy.delete().entity(follow);
+                    // A relationship created before the counters and not counted yet by the migration is not in the counters
+                    if (!follow.counted) {
+                        return;
+                    }
+                }
+                addToCounts(followerId, followedId, followed ? 1 : -1);
+            }
+        });
+    }
+
+    // Add a relationship to the counters of both users, or remove it, in the current transaction
+    // Each counter is updated in a random shard, so the follows of a popular user don't all write the same entity
+    private static void addToCounts(long followerId, long followedId, int delta) {
+        Objectify ofy = ObjectifyService.ofy();
+        int followerShard = ThreadLocalRandom.current().nextInt(FOLLOW_COUNT_SHARDS);
+        int followedShard = ThreadLocalRandom.current().nextInt(FOLLOW_COUNT_SHARDS);
+        // The map returned by Objectify is copied, as we may add new shards to it
+        Map<String, FollowCount> counts = new HashMap<>(ofy.load()
+                .type(FollowCount.class)
+                .ids(FollowCount.getId(followerId, followerShard), FollowCount.getId(followedId, followedShard)));
+        FollowCount followerCount = getOrCreateCount(counts, followerId, followerShard);
+        FollowCount followedCount = getOrCreateCount(counts, followedId, followedShard);
+        followerCount.followed += delta;
+        followedCount.followers += delta;
+        ofy.save().entities(followerCount, followedCount);
+    }
+
+    // Get a shard of the counters of a user from a map, creating and adding it if it doesn't exist yet
+    private static FollowCount getOrCreateCount(Map<String, FollowCount> counts, long id, int shard) {
+        FollowCount count = counts.get(FollowCount.getId(id, shard));
+        if (count == null) {
+            count = new FollowCount(id, shard);
+            counts.put(count.id, count);
+        }
+        return count;
     }
 
 }
\ No newline at end of file
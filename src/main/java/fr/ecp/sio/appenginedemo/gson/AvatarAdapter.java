@@ -0,0 +1,42 @@
+package fr.ecp.sio.appenginedemo.gson;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import fr.ecp.sio.appenginedemo.model.Avatar;
+
+import java.io.IOException;
+
+/**
+ * An explicit TypeAdapter for the Avatar class, to avoid reflection (see UserAdapter).
+ */
+public class AvatarAdapter extends TypeAdapter<Avatar> {
+
+    @Override
+    public void write(JsonWriter out, Avatar avatar) throws IOException {
+        out.beginObject();
+        UserAdapter.writeString(out, "servingUrl", avatar.servingUrl);
+        UserAdapter.writeStringMap(out, "sizes", avatar.sizes);
+        out.endObject();
+    }
+
+    @Override
+    public Avatar read(JsonReader in) throws IOException {
+        Avatar avatar = new Avatar(null);
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() != JsonToken.NULL && name.equals("servingUrl")) {
+                avatar.servingUrl = in.nextString();
+            } else if (in.peek() != JsonToken.NULL && name.equals("sizes")) {
+                avatar.sizes = UserAdapter.readStringMap(in);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return avatar;
+    }
+
+}
@@ -0,0 +1,53 @@
+package fr.ecp.sio.appenginedemo.gson;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import fr.ecp.sio.appenginedemo.model.Error;
+
+import java.io.IOException;
+
+/**
+ * An explicit TypeAdapter for the Error class, to avoid reflection (see UserAdapter).
+ */
+public class ErrorAdapter extends TypeAdapter<Error> {
+
+    @Override
+    public void write(JsonWriter out, Error error) throws IOException {
+        out.beginObject();
+        out.name("status").value(error.status);
+        UserAdapter.writeString(out, "code", error.code);
+        UserAdapter.writeString(out, "message", error.message);
+        out.endObject();
+    }
+
+    @Override
+    public Error read(JsonReader in) throws IOException {
+        Error error = new Error();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "status":
+                    error.status = in.nextInt();
+                    break;
+                case "code":
+                    error.code = in.nextString();
+                    break;
+                case "message":
+                    error.message = in.nextString();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return error;
+    }
+
+}
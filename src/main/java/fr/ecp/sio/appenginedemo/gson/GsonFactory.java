@@ -2,6 +2,9 @@ package fr.ecp.sio.appenginedemo.gson;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import fr.ecp.sio.appenginedemo.model.Avatar;
+import fr.ecp.sio.appenginedemo.model.Error;
+import fr.ecp.sio.appenginedemo.model.User;
 
 /**
  * We may use Gson in different parts of our potentially large server application, so it is a good idea to have some common utils for it.
@@ -10,15 +13,23 @@ public class GsonFactory {
 
     public static final String ISO_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
 
-    // This method creates a instance of Gson properly configured to be used everywhere on our server
+    // A Gson instance is immutable and thread-safe, so a single instance is shared by all the requests.
+    // Gson caches the adapter of every type it meets, building a new instance per request would throw this cache away.
+    private static final Gson GSON = new GsonBuilder()
+            .disableHtmlEscaping()
+            // This configures Gson to properly handle the Ref<?> fields defined in our model class
+            .registerTypeAdapterFactory(new RefAdapterFactory())
+            // Our model classes are read and written by explicit adapters instead of reflection
+            .registerTypeAdapter(User.class, new UserAdapter().nullSafe())
+            .registerTypeAdapter(Avatar.class, new AvatarAdapter().nullSafe())
+            .registerTypeAdapter(Error.class, new ErrorAdapter().nullSafe())
+            .registerTypeAdapterFactory(MessageAdapter.FACTORY)
+            .setDateFormat(ISO_DATE_FORMAT)
+            .create();
+
+    // This method returns the instance of Gson properly configured to be used everywhere on our server
     public static Gson getGson() {
-        // A builder pattern, with chained calls to set things up, then create()
-        return new GsonBuilder()
-                .disableHtmlEscaping()
-                // This configures Gson to properly handle the Ref<?> fields defined in our model class
-                .registerTypeAdapterFactory(new RefAdapterFactory())
-                .setDateFormat(ISO_DATE_FORMAT)
-                .create();
+        return GSON;
     }
 
 }
@@ -0,0 +1,117 @@
+package fr.ecp.sio.appenginedemo.gson;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.googlecode.objectify.Ref;
+import fr.ecp.sio.appenginedemo.model.AuthorSummary;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * An explicit TypeAdapter for the Message class, to avoid reflection (see UserAdapter).
+ * The author of a message is written from its embedded copy (AuthorSummary) when there is one.
+ * The date and the author are written by the adapters configured in Gson for these types,
+ * so this adapter is created by a factory that can ask Gson for them.
+ */
+public class MessageAdapter extends TypeAdapter<Message> {
+
+    // The factory to register in Gson
+    public static final TypeAdapterFactory FACTORY = new TypeAdapterFactory() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> typeToken) {
+            if (typeToken.getRawType() != Message.class) {
+                return null;
+            }
+            return (TypeAdapter<T>) new MessageAdapter(
+                    gson.getAdapter(Date.class),
+                    gson.getAdapter(new TypeToken<Ref<User>>() {})
+            ).nullSafe();
+        }
+    };
+
+    private final TypeAdapter<Date> mDateAdapter;
+    private final TypeAdapter<Ref<User>> mUserAdapter;
+
+    private MessageAdapter(TypeAdapter<Date> dateAdapter, TypeAdapter<Ref<User>> userAdapter) {
+        mDateAdapter = dateAdapter;
+        mUserAdapter = userAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, Message message) throws IOException {
+        out.beginObject();
+        if (message.id != null) {
+            out.name("id").value(message.id);
+        }
+        UserAdapter.writeString(out, "text", message.text);
+        if (message.date != null) {
+            out.name("date");
+            mDateAdapter.write(out, message.date);
+        }
+        if (message.author != null) {
+            // The copy of the author is written as the user, so we don't need to load the user entity
+            out.name("user");
+            writeAuthor(out, message.author);
+        } else if (message.user != null) {
+            // The messages posted before the copies were introduced have only the reference to their author
+            // (until the migration writes their copy, see MessagesRepository.AUTHORS_MIGRATION)
+            // The repositories set the copy of all the messages they return, with a single batch get for a list
+            // (see MessagesRepository.fillLegacyAuthors()): the author is only missing if he has been deleted
+            // The user is never loaded here, that would be one datastore get per message while writing the response
+            out.name("user");
+            out.beginObject();
+            out.name("id").value(message.user.getKey().getId());
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    private static void writeAuthor(JsonWriter out, AuthorSummary author) throws IOException {
+        out.beginObject();
+        out.name("id").value(author.id);
+        UserAdapter.writeString(out, "login", author.login);
+        UserAdapter.writeString(out, "avatar", author.avatar);
+        out.endObject();
+    }
+
+    @Override
+    public Message read(JsonReader in) throws IOException {
+        Message message = new Message();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    message.id = in.nextLong();
+                    break;
+                case "text":
+                    message.text = in.nextString();
+                    break;
+                case "date":
+                    message.date = mDateAdapter.read(in);
+                    break;
+                case "user":
+                    message.user = mUserAdapter.read(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return message;
+    }
+
+}
@@ -6,6 +6,7 @@ import com.google.gson.TypeAdapterFactory;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Ref;
 
 import java.io.IOException;
@@ -54,9 +55,20 @@ public class RefAdapterFactory implements TypeAdapterFactory {
                 if (key == null) {
                     // The Ref<> is null, just put a "null" element in the JSON tree
                     jsonWriter.nullValue();
-                } else {
+                } else if (key.isLoaded()) {
                     // Get the actual target of the Ref<> with getValue(), and use the provided target adapter to write it
                     targetAdapter.write(jsonWriter, key.getValue());
+                } else {
+                    // The target is not in the session: loading it here would be one datastore get per Ref<> while writing the response,
+                    // so only its id is written (the repositories load what must be written in full before)
+                    jsonWriter.beginObject();
+                    Key<TTarget> target = key.getKey();
+                    if (target.getName() != null) {
+                        jsonWriter.name("id").value(target.getName());
+                    } else {
+                        jsonWriter.name("id").value(target.getId());
+                    }
+                    jsonWriter.endObject();
                 }
             }
 
@@ -0,0 +1,109 @@
+package fr.ecp.sio.appenginedemo.gson;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import fr.ecp.sio.appenginedemo.model.User;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An explicit TypeAdapter for the User class.
+ * Gson would otherwise inspect the fields of the class by reflection, this adapter reads and writes them directly.
+ * It behaves like the reflective adapter: null fields are not written, unknown fields are ignored.
+ * Any field added to the model class must be added here too!
+ */
+public class UserAdapter extends TypeAdapter<User> {
+
+    @Override
+    public void write(JsonWriter out, User user) throws IOException {
+        out.beginObject();
+        out.name("id").value(user.id);
+        writeString(out, "login", user.login);
+        writeString(out, "avatar", user.avatar);
+        writeStringMap(out, "avatarSizes", user.avatarSizes);
+        writeString(out, "coverPicture", user.coverPicture);
+        writeString(out, "email", user.email);
+        writeString(out, "password", user.password);
+        out.endObject();
+    }
+
+    @Override
+    public User read(JsonReader in) throws IOException {
+        User user = new User();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                // A null value leaves the field with its default value
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    user.id = in.nextLong();
+                    break;
+                case "login":
+                    user.login = in.nextString();
+                    break;
+                case "avatar":
+                    user.avatar = in.nextString();
+                    break;
+                case "avatarSizes":
+                    user.avatarSizes = readStringMap(in);
+                    break;
+                case "coverPicture":
+                    user.coverPicture = in.nextString();
+                    break;
+                case "email":
+                    user.email = in.nextString();
+                    break;
+                case "password":
+                    user.password = in.nextString();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return user;
+    }
+
+    // Write a string property, only if it is not null
+    static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    // Write a map of strings as a JSON object, only if it is not null
+    static void writeStringMap(JsonWriter out, String name, Map<String, String> map) throws IOException {
+        if (map != null) {
+            out.name(name).beginObject();
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                writeString(out, entry.getKey(), entry.getValue());
+            }
+            out.endObject();
+        }
+    }
+
+    // Read a JSON object of strings as a map
+    static Map<String, String> readStringMap(JsonReader in) throws IOException {
+        Map<String, String> map = new LinkedHashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            if (in.peek() == JsonToken.STRING) {
+                map.put(key, in.nextString());
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return map;
+    }
+
+}
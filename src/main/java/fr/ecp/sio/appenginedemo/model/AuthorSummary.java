@@ -0,0 +1,24 @@
+package fr.ecp.sio.appenginedemo.model;
+
+/**
+ * A model class for a compact copy of the public information of a user, embedded in the messages he posted.
+ * The messages can then be displayed without loading their authors (remember there is no JOIN in the Datastore).
+ * This is not an entity: Objectify stores it as properties of the message itself.
+ * The copies are refreshed in the background when a user changes his login or avatar (see RefreshAuthorTask).
+ */
+public class AuthorSummary {
+
+    public long id;
+    public String login;
+    public String avatar;
+
+    public AuthorSummary() {
+    }
+
+    public AuthorSummary(User user) {
+        this.id = user.id;
+        this.login = user.login;
+        this.avatar = user.avatar;
+    }
+
+}
@@ -1,5 +1,7 @@
 package fr.ecp.sio.appenginedemo.model;
 
+import java.util.Map;
+
 /**
  * A model class for storing avatar representation. The only purpose of this class
  * as of now is to return a nicely json-looking reply through the API (instead of plain String).
@@ -7,6 +9,9 @@ package fr.ecp.sio.appenginedemo.model;
 public class Avatar {
     public String servingUrl;
 
+    // The serving URLs of the resized copies of the image, by size in pixels (e.g. "48")
+    public Map<String, String> sizes;
+
     public Avatar(String servingUrl) {
         this.servingUrl = servingUrl;
     }
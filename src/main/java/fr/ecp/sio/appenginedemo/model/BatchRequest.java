@@ -0,0 +1,19 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.google.gson.JsonElement;
+
+/**
+ * A model class for one of the requests sent at once to the batch endpoint.
+ */
+public class BatchRequest {
+
+    // The HTTP method of the request (GET, POST, PUT or DELETE)
+    public String method;
+
+    // The path of the endpoint, with its query string if any (e.g. "/users/me/followed?limit=20")
+    public String path;
+
+    // The JSON body of the request, if any
+    public JsonElement body;
+
+}
@@ -0,0 +1,19 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.google.gson.JsonElement;
+
+/**
+ * A model class for the response to one of the requests sent at once to the batch endpoint.
+ * It is the same as if the request had been sent alone: its HTTP status code, and its JSON body.
+ */
+public class BatchResponse {
+
+    public int status;
+    public JsonElement body;
+
+    public BatchResponse(int status, JsonElement body) {
+        this.status = status;
+        this.body = body;
+    }
+
+}
@@ -0,0 +1,19 @@
+package fr.ecp.sio.appenginedemo.model;
+
+/**
+ * A model class to represent the statistics of one of our caches, as returned by the stats endpoint
+ */
+public class CacheStats {
+
+    public String name;
+    public long size;
+    public long maxSize;
+    public long hits;
+    public long misses;
+    public long evictions;
+    public double hitRatio;
+
+    // The average time to get a value on a miss, from the next level (absent when it is not measured)
+    public Double averageLoadMillis;
+
+}
@@ -0,0 +1,36 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * A model class to mark a user whose messages are not copied into the timelines of his followers anymore,
+ * because he has too many of them (see TimelineService).
+ * A user is marked when he posts a message with more followers than the threshold, and unmarked when he posts with fewer.
+ * His messages posted while he was marked are only found by merging them with the timelines when they are read,
+ * so an unmarked user keeps his marker with the date he was unmarked, until these messages are copied (see CelebrityBackfillTask).
+ */
+@Entity
+public class Celebrity {
+
+    // The id of the user
+    @Id
+    public long id;
+
+    public Date since;
+
+    // The date the user was unmarked, null while he is a celebrity
+    // His messages posted after this date are copied into the timelines again
+    public Date until;
+
+    public Celebrity() {
+    }
+
+    public Celebrity(long id) {
+        this.id = id;
+        this.since = new Date();
+    }
+
+}
@@ -0,0 +1,15 @@
+package fr.ecp.sio.appenginedemo.model;
+
+/**
+ * A model class returned by the API when the deletion of data has been scheduled, and runs in the background.
+ */
+public class DeletionJob {
+
+    // The id of the job, that can be found in the logs of the background tasks
+    public String jobId;
+
+    public DeletionJob(String jobId) {
+        this.jobId = jobId;
+    }
+
+}
@@ -0,0 +1,60 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+import java.util.Date;
+
+/**
+ * A model class to represent a relationship between two users: the follower follows the followed user.
+ * There is one entity per edge of the follow graph.
+ */
+@Entity
+public class Follow {
+
+    // The id is built from the ids of both users.
+    // This way, knowing whether A follows B is a simple get by key, and following twice the same user is not possible.
+    @Id
+    public String id;
+
+    // Both ends of the relationship are indexed, to list the followed users and the followers of a user
+    @Index
+    public Key<User> follower;
+
+    @Index
+    public Key<User> followed;
+
+    public Date date;
+
+    // true once the relationship is counted in the counters of both users (see FollowCount)
+    // The relationships created before the counters existed are counted by a migration (see UsersRepository.FOLLOW_COUNTS_MIGRATION)
+    public boolean counted;
+
+    public Follow() {
+    }
+
+    public Follow(long followerId, long followedId) {
+        this.id = getId(followerId, followedId);
+        this.follower = Key.create(User.class, followerId);
+        this.followed = Key.create(User.class, followedId);
+        this.date = new Date();
+    }
+
+    // Build the id of the relationship between two users
+    public static String getId(long followerId, long followedId) {
+        return followerId + ":" + followedId;
+    }
+
+    // Extract the id of the follower from the id of a relationship
+    public static long getFollowerId(String id) {
+        return Long.parseLong(id.substring(0, id.indexOf(':')));
+    }
+
+    // Extract the id of the followed user from the id of a relationship
+    public static long getFollowedId(String id) {
+        return Long.parseLong(id.substring(id.indexOf(':') + 1));
+    }
+
+}
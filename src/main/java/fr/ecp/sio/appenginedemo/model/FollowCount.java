@@ -0,0 +1,36 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * A model class to keep the number of followers and followed users of a user.
+ * The counters are updated with the relationships (see Follow), so they never need to be computed with a query.
+ * An entity group can only be written about once per second, which is not enough for a popular user:
+ * the counters of a user are split into several shards, each follow updates a random one,
+ * and the counters are the sums of all the shards (see UsersRepository).
+ */
+@Entity
+public class FollowCount {
+
+    // The id of the shard: "{userId}-{shard}"
+    @Id
+    public String id;
+
+    // A single shard may be negative (e.g. a user followed in one shard and unfollowed in another), but not the sums
+    public long followers;
+    public long followed;
+
+    public FollowCount() {
+    }
+
+    public FollowCount(long userId, int shard) {
+        this.id = getId(userId, shard);
+    }
+
+    // Build the id of a shard of the counters of a user
+    public static String getId(long userId, int shard) {
+        return userId + "-" + shard;
+    }
+
+}
@@ -3,7 +3,7 @@ package fr.ecp.sio.appenginedemo.model;
 import com.googlecode.objectify.Ref;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
-import com.googlecode.objectify.annotation.Load;
+import com.googlecode.objectify.annotation.Index;
 
 import java.util.Date;
 
@@ -19,14 +19,23 @@ public class Message {
     @Id
     public Long id;
     public String text;
+
+    // The messages of a user are queried by author and sorted by date, so both properties must be indexed
+    // The composite index on (user, -date) itself is declared in WEB-INF/datastore-indexes.xml
+    @Index
     public Date date;
 
     // We don't use a simple User field for the author of the message.
     // Instead, we use a special Objectify class, a Ref<>, witch is just a reference to a user entity.
     // This trick allows lazy loading of users, and populating our model classes (remember there is not JOIN in the Datastore).
     // We take care of how this Ref<> will be serialized into JSON in the GsonFactory class.
-    // The @Load annotation is required for automatically loading the author when a message is retrieved.
-    @Load
+    // The author is not loaded automatically with the message (no @Load annotation): the message carries a copy
+    // of what is needed to display its author (see below), the Ref<> is mostly used to query the messages by author.
+    @Index
     public Ref<User> user;
 
+    // A copy of the public information of the author, written when the message is posted
+    // It is written in the JSON responses instead of the user entity (see MessageAdapter)
+    public AuthorSummary author;
+
 }
\ No newline at end of file
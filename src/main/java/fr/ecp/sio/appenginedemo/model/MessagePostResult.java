@@ -0,0 +1,11 @@
+package fr.ecp.sio.appenginedemo.model;
+
+/**
+ * A model class for the result of one of the messages posted at once: either the created message, or the reason why it was not.
+ */
+public class MessagePostResult {
+
+    public Message message;
+    public Error error;
+
+}
@@ -0,0 +1,33 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * A model class to remember the progress of a one-off migration of the existing data (see MigrationTask).
+ * Some code must behave differently until a migration has completed (e.g. look for the users who have no lookup entity yet).
+ */
+@Entity
+@Cache
+public class MigrationStatus {
+
+    // The name of the migration
+    @Id
+    public String name;
+
+    public Date started;
+
+    // Null until the last batch of the migration has been processed
+    public Date completed;
+
+    public MigrationStatus() {
+    }
+
+    public MigrationStatus(String name) {
+        this.name = name;
+    }
+
+}
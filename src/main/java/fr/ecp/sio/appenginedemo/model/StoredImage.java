@@ -0,0 +1,36 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.Date;
+
+/**
+ * A model class to count the references to an image stored in the Cloud Storage.
+ * An image uploaded again is not stored twice (see StoredImageHash), so the same file can be shared by several users:
+ * it is only deleted from the storage when nobody references it anymore (see ImagesRepository).
+ */
+@Entity
+public class StoredImage {
+
+    // The name of the file in the storage
+    @Id
+    public String name;
+
+    // The id of the StoredImageHash of the file, null for the files stored before (their name is the hash)
+    public String hash;
+
+    public long references;
+
+    // Set when the last reference is released and the files are being deleted from the storage
+    // No reference can be added to the image anymore: the same content uploaded meanwhile is stored in a new file
+    public Date deletionStarted;
+
+    public StoredImage() {
+    }
+
+    public StoredImage(String name) {
+        this.name = name;
+    }
+
+}
@@ -0,0 +1,29 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * A model class to find a stored image from the hash of its content with a get by key, instead of a query.
+ * An uploaded image that is already stored is not kept: the existing file gets a new reference instead (see ImagesRepository).
+ * It is written in the same transaction as the StoredImage, and deleted with it when nobody references the image anymore.
+ */
+@Entity
+public class StoredImageHash {
+
+    // The SHA-256 hash of the content, followed by the file extension
+    @Id
+    public String hash;
+
+    // The name of the file in the storage
+    public String fileName;
+
+    public StoredImageHash() {
+    }
+
+    public StoredImageHash(String hash, String fileName) {
+        this.hash = hash;
+        this.fileName = fileName;
+    }
+
+}
@@ -0,0 +1,42 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+import java.util.Date;
+
+/**
+ * A model class to represent a message in the home timeline of a user.
+ * When a message is posted, an entry is written for the author and for each of his followers ("fan-out on write"),
+ * so that a timeline can be read later with a single indexed query, whatever the number of followed users.
+ */
+@Entity
+public class TimelineEntry {
+
+    // The id is built from the ids of the owner and the message, so that writing the same entry twice is harmless
+    @Id
+    public String id;
+
+    // The entries of a timeline are queried by owner and sorted by date
+    // The composite index on (owner, -date) is declared in WEB-INF/datastore-indexes.xml
+    @Index
+    public Key<User> owner;
+
+    @Index
+    public Date date;
+
+    public long messageId;
+
+    public TimelineEntry() {
+    }
+
+    public TimelineEntry(long ownerId, long messageId, Date date) {
+        this.id = ownerId + ":" + messageId;
+        this.owner = Key.create(User.class, ownerId);
+        this.messageId = messageId;
+        this.date = date;
+    }
+
+}
@@ -1,13 +1,18 @@
 package fr.ecp.sio.appenginedemo.model;
 
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Index;
 
+import java.util.Map;
+
 /**
  * A model class to represent a single user
  */
+// The @Cache annotation makes Objectify keep the users in the memcache, in front of the datastore (see UsersRepository.getUser())
 @Entity
+@Cache
 public class User {
 
     @Id
@@ -19,6 +24,11 @@ public class User {
     public String login;
 
     public String avatar;
+
+    // The URLs of smaller versions of the avatar, by size in pixels (e.g. "48"), so that clients don't download the original
+    // This is null when no resized copy is available (e.g. for an avatar hosted elsewhere)
+    public Map<String, String> avatarSizes;
+
     public String coverPicture;
 
     @Index
@@ -26,4 +36,6 @@ public class User {
 
     public String password;
 
+    // Note: any field added here must be added to UserAdapter and to UsersRepository.copyUser() too
+
 }
\ No newline at end of file
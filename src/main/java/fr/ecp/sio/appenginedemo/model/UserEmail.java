@@ -0,0 +1,26 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * A model class to find a user from his email with a get by key, instead of a query (see UserLogin).
+ */
+@Entity
+public class UserEmail {
+
+    // The normalized email
+    @Id
+    public String email;
+
+    public long userId;
+
+    public UserEmail() {
+    }
+
+    public UserEmail(String email, long userId) {
+        this.email = email;
+        this.userId = userId;
+    }
+
+}
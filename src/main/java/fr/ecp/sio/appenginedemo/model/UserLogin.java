@@ -0,0 +1,29 @@
+package fr.ecp.sio.appenginedemo.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * A model class to find a user from his login with a get by key, instead of a query.
+ * There is one entity for each user, whose id is the normalized login (see UsersRepository.normalize()).
+ * As two entities cannot have the same id, it also guarantees that two users never have the same login.
+ * It is written in the same transaction as the user.
+ */
+@Entity
+public class UserLogin {
+
+    // The normalized login
+    @Id
+    public String login;
+
+    public long userId;
+
+    public UserLogin() {
+    }
+
+    public UserLogin(String login, long userId) {
+        this.login = login;
+        this.userId = userId;
+    }
+
+}
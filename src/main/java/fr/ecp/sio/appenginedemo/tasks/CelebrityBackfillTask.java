@@ -0,0 +1,88 @@
+package fr.ecp.sio.appenginedemo.tasks;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import fr.ecp.sio.appenginedemo.data.CelebritiesRepository;
+import fr.ecp.sio.appenginedemo.data.DataException;
+import fr.ecp.sio.appenginedemo.data.MessagesRepository;
+import fr.ecp.sio.appenginedemo.model.Celebrity;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A background task that copies the messages posted by a former celebrity into the timelines of his followers,
+ * then deletes his marker, so the hybrid timelines stop merging his messages and the list of the markers stays small.
+ * Each run schedules the fan-out of one batch of messages (see FanOutTask), then enqueues itself again for the next batch.
+ */
+public class CelebrityBackfillTask implements DeferredTask {
+
+    // The name of the queue, as declared in WEB-INF/queue.xml
+    private static final String QUEUE_NAME = "fanout";
+
+    // The number of messages whose fan-out is scheduled by a single run of the task
+    private static final int BATCH_SIZE = 100;
+
+    // The marker is deleted after this delay, when the fan-out tasks scheduled before have run
+    // A fan-out that is still retried then only shows the message to the followers once it succeeds
+    private static final long DELETION_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final Logger LOGGER = Logger.getLogger(CelebrityBackfillTask.class.getSimpleName());
+
+    private final long mUserId;
+    private final Date mSince;
+    private final Date mUntil;
+    private final String mCursor;
+
+    // Set for the last run, which only deletes the marker
+    private final boolean mDeleteMarker;
+
+    private CelebrityBackfillTask(long userId, Date since, Date until, String cursor, boolean deleteMarker) {
+        mUserId = userId;
+        mSince = since;
+        mUntil = until;
+        mCursor = cursor;
+        mDeleteMarker = deleteMarker;
+    }
+
+    // Schedule the copy of the messages of a celebrity who has just been unmarked
+    public static void enqueue(Celebrity marker) {
+        enqueue(new CelebrityBackfillTask(marker.id, marker.since, marker.until, null, false), 0);
+    }
+
+    private static void enqueue(CelebrityBackfillTask task, long countdownMillis) {
+        // The task object is serialized and sent as the payload of the task
+        QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withPayload(task).countdownMillis(countdownMillis));
+    }
+
+    @Override
+    public void run() {
+        if (mDeleteMarker) {
+            // Nothing is deleted if the user has been marked again meanwhile
+            CelebritiesRepository.deleteFormerCelebrity(mUserId, mUntil);
+            return;
+        }
+
+        try {
+            // The messages posted before he was marked were copied when they were posted, the ones after he was unmarked too
+            MessagesRepository.MessagesList messages = MessagesRepository.getMessagesByUser(mUserId, mSince, mUntil, BATCH_SIZE, mCursor);
+            if (!messages.messages.isEmpty()) {
+                // If the user is marked again meanwhile, these fan-outs don't copy anything and his marker is kept
+                FanOutTask.enqueue(messages.messages);
+            }
+
+            // There may be more messages: let another task handle them, or delete the marker once they are all copied
+            if (messages.cursor != null) {
+                enqueue(new CelebrityBackfillTask(mUserId, mSince, mUntil, messages.cursor, false), 0);
+            } else {
+                enqueue(new CelebrityBackfillTask(mUserId, mSince, mUntil, null, true), DELETION_DELAY_MILLIS);
+            }
+        } catch (DataException e) {
+            // A cursor we created ourselves cannot be invalid, there is no point in retrying the task
+            LOGGER.severe("Cannot copy the messages of former celebrity " + mUserId + ": " + e.getMessage());
+        }
+    }
+
+}
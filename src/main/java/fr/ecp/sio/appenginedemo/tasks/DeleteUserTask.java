@@ -0,0 +1,133 @@
+package fr.ecp.sio.appenginedemo.tasks;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import fr.ecp.sio.appenginedemo.data.CelebritiesRepository;
+import fr.ecp.sio.appenginedemo.data.DataException;
+import fr.ecp.sio.appenginedemo.data.ImagesRepository;
+import fr.ecp.sio.appenginedemo.data.MessagesRepository;
+import fr.ecp.sio.appenginedemo.data.TimelineRepository;
+import fr.ecp.sio.appenginedemo.data.UsersRepository;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * A background task that deletes everything that belongs to a deleted user: messages, timeline, relationships and avatar.
+ * The user himself is deleted by the request, then this task cleans up the rest, step by step (see Step).
+ * Each run handles one batch of entities, then enqueues itself again for the next batch or the next step,
+ * so a user with a long history never makes a single run too long.
+ */
+public class DeleteUserTask implements DeferredTask {
+
+    // The name of the queue, as declared in WEB-INF/queue.xml
+    private static final String QUEUE_NAME = "cleanup";
+
+    // The number of entities deleted by a single run of the task (with a single batch delete)
+    private static final int BATCH_SIZE = 500;
+
+    // The relationships are removed one by one (with the counters of the other user), so they use smaller batches
+    private static final int FOLLOW_BATCH_SIZE = 100;
+
+    private static final Logger LOGGER = Logger.getLogger(DeleteUserTask.class.getSimpleName());
+
+    // The steps of the deletion, in order
+    private enum Step {
+        MESSAGES,
+        TIMELINE,
+        FOLLOWERS,
+        FOLLOWED,
+        AVATAR
+    }
+
+    private final String mJobId;
+    private final long mUserId;
+    private final String mAvatar;
+    private final Step mStep;
+    private final String mCursor;
+
+    private DeleteUserTask(String jobId, long userId, String avatar, Step step, String cursor) {
+        mJobId = jobId;
+        mUserId = userId;
+        mAvatar = avatar;
+        mStep = step;
+        mCursor = cursor;
+    }
+
+    /**
+     * Schedule the deletion of the data of a user that has just been deleted
+     * @param userId The id of the deleted user
+     * @param avatar The URL of the avatar of the deleted user
+     * @return The id of the deletion job, found in the logs of the task
+     */
+    public static String enqueue(long userId, String avatar) {
+        String jobId = UUID.randomUUID().toString();
+        enqueue(new DeleteUserTask(jobId, userId, avatar, Step.MESSAGES, null));
+        return jobId;
+    }
+
+    private static void enqueue(DeleteUserTask task) {
+        // The task object is serialized and sent as the payload of the task
+        QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withPayload(task));
+    }
+
+    @Override
+    public void run() {
+        try {
+            String cursor = runStep();
+            if (cursor != null) {
+                // There is more to delete in this step: let another task handle it
+                enqueue(new DeleteUserTask(mJobId, mUserId, mAvatar, mStep, cursor));
+            } else if (mStep.ordinal() + 1 < Step.values().length) {
+                enqueue(new DeleteUserTask(mJobId, mUserId, mAvatar, Step.values()[mStep.ordinal() + 1], null));
+            } else {
+                LOGGER.info("Deletion job " + mJobId + " of user " + mUserId + " completed");
+            }
+        } catch (DataException e) {
+            // A cursor we created ourselves cannot be invalid, there is no point in retrying the task
+            LOGGER.severe("Deletion job " + mJobId + " of user " + mUserId + " failed: " + e.getMessage());
+        } catch (IOException e) {
+            // The storage may be temporarily unavailable: the exception makes the task queue retry the task
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Run one batch of the current step, and return the cursor of the next batch if the step is not completed
+    private String runStep() throws DataException, IOException {
+        switch (mStep) {
+            case MESSAGES:
+                // The copies of the messages in the timelines of the followers are not removed:
+                // the timelines skip the messages that don't exist anymore
+                return MessagesRepository.deleteMessagesByUser(mUserId, BATCH_SIZE, mCursor);
+            case TIMELINE:
+                return TimelineRepository.deleteTimeline(mUserId, BATCH_SIZE, mCursor);
+            case FOLLOWERS:
+                UsersRepository.IdsList followers = UsersRepository.getUserFollowerIds(mUserId, FOLLOW_BATCH_SIZE, mCursor);
+                for (long followerId : followers.ids) {
+                    UsersRepository.setUserFollowed(followerId, mUserId, false);
+                }
+                return followers.cursor;
+            case FOLLOWED:
+                UsersRepository.IdsList followed = UsersRepository.getUserFollowedIds(mUserId, FOLLOW_BATCH_SIZE, mCursor);
+                for (long followedId : followed.ids) {
+                    UsersRepository.setUserFollowed(mUserId, followedId, false);
+                }
+                return followed.cursor;
+            case AVATAR:
+                // The counters of the user are only deleted now, as removing the relationships updates them
+                UsersRepository.deleteFollowCount(mUserId);
+                CelebritiesRepository.deleteCelebrity(mUserId);
+                // The image itself (and its resized copies) is only deleted if no other user references it
+                String avatarFileName = ImagesRepository.getStoredFileName(mAvatar);
+                if (avatarFileName != null) {
+                    ImagesRepository.deleteImage(avatarFileName);
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package fr.ecp.sio.appenginedemo.tasks;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import fr.ecp.sio.appenginedemo.data.DataException;
+import fr.ecp.sio.appenginedemo.data.TimelineRepository;
+import fr.ecp.sio.appenginedemo.data.TimelineService;
+import fr.ecp.sio.appenginedemo.data.UsersRepository;
+import fr.ecp.sio.appenginedemo.model.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A background task that copies a new message into the home timelines of the followers of its author ("fan-out on write").
+ * The task is run by the App Engine task queue, outside of the request that posted the message.
+ * Each run handles one batch of followers, then enqueues itself again for the next batch.
+ */
+public class FanOutTask implements DeferredTask {
+
+    // The name of the queue, as declared in WEB-INF/queue.xml
+    private static final String QUEUE_NAME = "fanout";
+
+    // The number of timelines written by a single run of the task
+    private static final int BATCH_SIZE = 500;
+
+    // The maximum number of tasks added to the queue with a single call
+    private static final int ENQUEUE_BATCH_SIZE = 100;
+
+    private static final Logger LOGGER = Logger.getLogger(FanOutTask.class.getSimpleName());
+
+    private final long mMessageId;
+    private final long mAuthorId;
+    private final Date mDate;
+    private final String mCursor;
+
+    private FanOutTask(long messageId, long authorId, Date date, String cursor) {
+        mMessageId = messageId;
+        mAuthorId = authorId;
+        mDate = date;
+        mCursor = cursor;
+    }
+
+    // Schedule the fan-out of a message that has just been posted
+    public static void enqueue(Message message) {
+        enqueue(new FanOutTask(message.id, message.user.getKey().getId(), message.date, null));
+    }
+
+    // Schedule the fan-out of several messages that have just been posted
+    // The tasks are added to the queue by batches, each batch is a single call to the task queue
+    public static void enqueue(List<Message> messages) {
+        Queue queue = QueueFactory.getQueue(QUEUE_NAME);
+        List<TaskOptions> tasks = new ArrayList<>();
+        for (Message message : messages) {
+            tasks.add(TaskOptions.Builder.withPayload(
+                    new FanOutTask(message.id, message.user.getKey().getId(), message.date, null)
+            ));
+            if (tasks.size() == ENQUEUE_BATCH_SIZE) {
+                queue.add(tasks);
+                tasks = new ArrayList<>();
+            }
+        }
+        if (!tasks.isEmpty()) {
+            queue.add(tasks);
+        }
+    }
+
+    private static void enqueue(FanOutTask task) {
+        // The task object is serialized and sent as the payload of the task
+        QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withPayload(task));
+    }
+
+    @Override
+    public void run() {
+        // The first run also writes the message into the timeline of its author
+        if (mCursor == null) {
+            TimelineRepository.addToTimelines(Collections.singletonList(mAuthorId), mMessageId, mDate);
+
+            // The messages of the authors with too many followers are not copied,
+            // they are merged into the timelines of the followers when they are read (see TimelineService)
+            if (!TimelineService.isFannedOutOnWrite(mAuthorId)) {
+                return;
+            }
+        }
+
+        try {
+            UsersRepository.IdsList followers = UsersRepository.getUserFollowerIds(mAuthorId, BATCH_SIZE, mCursor);
+            if (!followers.ids.isEmpty()) {
+                TimelineRepository.addToTimelines(followers.ids, mMessageId, mDate);
+            }
+
+            // There may be more followers: let another task handle them
+            if (followers.cursor != null) {
+                enqueue(new FanOutTask(mMessageId, mAuthorId, mDate, followers.cursor));
+            }
+        } catch (DataException e) {
+            // A cursor we created ourselves cannot be invalid, there is no point in retrying the task
+            LOGGER.severe("Cannot fan out message " + mMessageId + ": " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package fr.ecp.sio.appenginedemo.tasks;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import fr.ecp.sio.appenginedemo.data.DataException;
+import fr.ecp.sio.appenginedemo.data.MessagesRepository;
+import fr.ecp.sio.appenginedemo.data.MigrationsRepository;
+import fr.ecp.sio.appenginedemo.data.UsersRepository;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A background task that migrates the existing data after a change of the model, e.g. creates the entities that
+ * only the new code writes for the data created before it (see MIGRATIONS).
+ * A migration is started by an administrator (see MigrationsServlet), once the new code is deployed.
+ * Each run handles one batch of entities, then enqueues itself again for the next batch,
+ * and the migration is marked as completed after the last one (see MigrationsRepository).
+ */
+public class MigrationTask implements DeferredTask {
+
+    // The name of the queue, as declared in WEB-INF/queue.xml
+    private static final String QUEUE_NAME = "migrations";
+
+    // The number of entities handled by a single run of the task
+    private static final int BATCH_SIZE = 100;
+
+    // The names of the migrations that can be started
+    public static final List<String> MIGRATIONS = Arrays.asList(
+            UsersRepository.LOOKUPS_MIGRATION,
+            MessagesRepository.INDEXES_MIGRATION,
+            MessagesRepository.AUTHORS_MIGRATION,
+            UsersRepository.FOLLOW_COUNTS_MIGRATION
+    );
+
+    private static final Logger LOGGER = Logger.getLogger(MigrationTask.class.getSimpleName());
+
+    private final String mName;
+    private final String mCursor;
+
+    private MigrationTask(String name, String cursor) {
+        mName = name;
+        mCursor = cursor;
+    }
+
+    // Start a migration from the beginning
+    public static void enqueue(String name) {
+        MigrationsRepository.setStarted(name);
+        enqueue(new MigrationTask(name, null));
+    }
+
+    private static void enqueue(MigrationTask task) {
+        // The task object is serialized and sent as the payload of the task
+        QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withPayload(task));
+    }
+
+    @Override
+    public void run() {
+        try {
+            String cursor = runBatch();
+            if (cursor != null) {
+                // There is more to migrate: let another task handle it
+                enqueue(new MigrationTask(mName, cursor));
+            } else {
+                MigrationsRepository.setCompleted(mName);
+                LOGGER.info("Migration " + mName + " completed");
+            }
+        } catch (DataException e) {
+            // A cursor we created ourselves cannot be invalid, there is no point in retrying the task
+            LOGGER.severe("Migration " + mName + " failed: " + e.getMessage());
+        }
+    }
+
+    // Run one batch of the migration, and return the cursor of the next batch if the migration is not completed
+    private String runBatch() throws DataException {
+        switch (mName) {
+            case UsersRepository.LOOKUPS_MIGRATION:
+                return UsersRepository.backfillLookups(BATCH_SIZE, mCursor);
+            case MessagesRepository.INDEXES_MIGRATION:
+                return MessagesRepository.reindexMessages(BATCH_SIZE, mCursor);
+            case MessagesRepository.AUTHORS_MIGRATION:
+                return MessagesRepository.backfillAuthors(BATCH_SIZE, mCursor);
+            case UsersRepository.FOLLOW_COUNTS_MIGRATION:
+                return UsersRepository.backfillFollowCounts(BATCH_SIZE, mCursor);
+            default:
+                LOGGER.severe("Unknown migration " + mName);
+                return null;
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package fr.ecp.sio.appenginedemo.tasks;
+
+import com.google.appengine.api.taskqueue.DeferredTask;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import fr.ecp.sio.appenginedemo.data.DataException;
+import fr.ecp.sio.appenginedemo.data.MessagesRepository;
+import fr.ecp.sio.appenginedemo.data.UsersRepository;
+import fr.ecp.sio.appenginedemo.model.AuthorSummary;
+import fr.ecp.sio.appenginedemo.model.User;
+
+import java.util.logging.Logger;
+
+/**
+ * A background task that updates the copy of a user embedded in all his messages (see AuthorSummary),
+ * after he changed his login or his avatar.
+ * Each run handles one batch of messages, then enqueues itself again for the next batch.
+ */
+public class RefreshAuthorTask implements DeferredTask {
+
+    // The name of the queue, as declared in WEB-INF/queue.xml
+    private static final String QUEUE_NAME = "authors";
+
+    // The number of messages written by a single run of the task (each one in its own transaction)
+    private static final int BATCH_SIZE = 100;
+
+    private static final Logger LOGGER = Logger.getLogger(RefreshAuthorTask.class.getSimpleName());
+
+    private final long mUserId;
+    private final String mCursor;
+
+    private RefreshAuthorTask(long userId, String cursor) {
+        mUserId = userId;
+        mCursor = cursor;
+    }
+
+    // Schedule the update of the messages of a user whose public information has just changed
+    public static void enqueue(long userId) {
+        enqueue(new RefreshAuthorTask(userId, null));
+    }
+
+    private static void enqueue(RefreshAuthorTask task) {
+        // The task object is serialized and sent as the payload of the task
+        QueueFactory.getQueue(QUEUE_NAME).add(TaskOptions.Builder.withPayload(task));
+    }
+
+    @Override
+    public void run() {
+        // The user is read again by each run: if he changed again in between, the last batches get the latest values
+        // It must not come from the cache of this instance, which may not know the change yet
+        User user = UsersRepository.getLatestUser(mUserId);
+        if (user == null) {
+            // The user has been deleted, his messages too
+            return;
+        }
+
+        try {
+            String cursor = MessagesRepository.updateAuthor(new AuthorSummary(user), BATCH_SIZE, mCursor);
+
+            // There may be more messages: let another task handle them
+            if (cursor != null) {
+                enqueue(new RefreshAuthorTask(mUserId, cursor));
+            }
+        } catch (DataException e) {
+            // A cursor we created ourselves cannot be invalid, there is no point in retrying the task
+            LOGGER.severe("Cannot refresh the messages of user " + mUserId + ": " + e.getMessage());
+        }
+    }
+
+}
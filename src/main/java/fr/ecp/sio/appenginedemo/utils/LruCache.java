@@ -0,0 +1,197 @@
+package fr.ecp.sio.appenginedemo.utils;
+
+import fr.ecp.sio.appenginedemo.model.CacheStats;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small in-memory cache, shared by all the requests handled by an instance of the server.
+ * It keeps at most a given number of entries, and evicts the least recently used one when it is full (LRU).
+ * The entries can also expire after a given time to live.
+ * All the methods are thread-safe, and the cache counts its hits and misses so that its size can be tuned.
+ *
+ * Even a read moves the entry in the LRU list, so each access needs a lock: with a single lock for the whole cache,
+ * the concurrent requests of an instance would wait for each other on every read.
+ * The cache is split into segments instead, chosen by the hash of the key, each one with its own lock and LRU list:
+ * the requests only wait for each other when they use the same segment.
+ * The eviction is then LRU within a segment, which is close enough to a global LRU for keys that are spread evenly.
+ */
+public class LruCache<K, V> {
+
+    // The number of segments, as a power of two (a cache with fewer entries than this has fewer segments)
+    private static final int SEGMENTS = 16;
+
+    private final String mName;
+    private final int mMaxSize;
+    private final long mTtlMillis;
+    private final List<Segment> mSegments;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mLoads = new AtomicLong();
+    private final AtomicLong mLoadNanos = new AtomicLong();
+
+    /**
+     * @param name The name of the cache, used in the statistics
+     * @param maxSize The maximum number of entries
+     * @param ttlMillis The time to live of an entry in milliseconds, or 0 if the entries never expire
+     */
+    public LruCache(String name, int maxSize, long ttlMillis) {
+        mName = name;
+        mMaxSize = maxSize;
+        mTtlMillis = ttlMillis;
+        // The maximum size is shared between the segments
+        int segments = Math.max(1, Math.min(SEGMENTS, Integer.highestOneBit(Math.max(1, maxSize))));
+        mSegments = new ArrayList<>(segments);
+        for (int i = 0; i < segments; i++) {
+            mSegments.add(new Segment(maxSize / segments + (i < maxSize % segments ? 1 : 0)));
+        }
+    }
+
+    // The segment of a key
+    // The bits of the hash are mixed first, as the hash of a Long key is often only its lowest bits
+    private Segment getSegment(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return mSegments.get(hash & (mSegments.size() - 1));
+    }
+
+    /**
+     * @param key The key of the entry
+     * @return The value of the entry, or null if there is no entry or if it has expired
+     */
+    public V get(K key) {
+        Segment segment = getSegment(key);
+        Entry<V> entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null && entry.isExpired()) {
+                segment.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return entry.value;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, mTtlMillis);
+    }
+
+    // Add an entry with a specific time to live, in milliseconds (0 for never)
+    public void put(K key, V value, long ttlMillis) {
+        Entry<V> entry = new Entry<>(value, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0);
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+    }
+
+    /**
+     * Record the time spent to get a value that was not in the cache from the next level (e.g. the datastore),
+     * so the statistics show how much a miss costs
+     * @param nanos The duration of the load, in nanoseconds
+     */
+    public void recordLoad(long nanos) {
+        mLoads.incrementAndGet();
+        mLoadNanos.addAndGet(nanos);
+    }
+
+    public void remove(K key) {
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    // Get a snapshot of the statistics of the cache, to be sent as JSON
+    public CacheStats getStats() {
+        CacheStats stats = new CacheStats();
+        stats.name = mName;
+        stats.size = size();
+        stats.maxSize = mMaxSize;
+        stats.hits = mHits.get();
+        stats.misses = mMisses.get();
+        stats.evictions = mEvictions.get();
+        long requests = stats.hits + stats.misses;
+        stats.hitRatio = requests > 0 ? (double) stats.hits / requests : 0;
+        long loads = mLoads.get();
+        if (loads > 0) {
+            stats.averageLoadMillis = mLoadNanos.get() / 1e6 / loads;
+        }
+        return stats;
+    }
+
+    // A part of the cache, always used while holding its own lock
+    // A LinkedHashMap in "access order" moves an entry to the end of the list each time it is read,
+    // so the first entry is always the least recently used, and it can remove it when a new one is added
+    private class Segment extends LinkedHashMap<K, Entry<V>> {
+
+        // A segment is never serialized, but LinkedHashMap is Serializable
+        private static final long serialVersionUID = 1L;
+
+        private final int mSegmentMaxSize;
+
+        private Segment(int maxSize) {
+            super(16, 0.75f, true);
+            mSegmentMaxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, LruCache.Entry<V>> eldest) {
+            if (size() > mSegmentMaxSize) {
+                mEvictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+    }
+
+    // A value in the cache, with its expiration time (0 for never)
+    private static class Entry<V> {
+
+        private final V value;
+        private final long expiration;
+
+        private Entry(V value, long expiration) {
+            this.value = value;
+            this.expiration = expiration;
+        }
+
+        private boolean isExpired() {
+            return expiration > 0 && System.currentTimeMillis() > expiration;
+        }
+
+    }
+
+}
@@ -1,12 +1,20 @@
 package fr.ecp.sio.appenginedemo.utils;
 
+import fr.ecp.sio.appenginedemo.model.CacheStats;
+import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 
+import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.MessageDigest;
 import java.security.SignatureException;
+import java.util.Date;
 
 /**
  * Some utils to encrypt and decrypt an API token
@@ -20,6 +28,15 @@ public class TokenUtils {
         KEY = new SecretKeySpec(key, 0, key.length, "AES");
     }
 
+    // The clients send the same token with each request, so we remember the tokens we already verified.
+    // The cache maps a digest of the token to the user id, its size and time to live can be configured in appengine-web.xml
+    private static final long VERIFIED_TOKENS_TTL_MILLIS = Long.getLong("federatedbirds.tokenCache.ttlSeconds", 3600L) * 1000;
+    private static final LruCache<String, Long> VERIFIED_TOKENS = new LruCache<>(
+            "verifiedTokens",
+            Integer.getInteger("federatedbirds.tokenCache.size", 10000),
+            VERIFIED_TOKENS_TTL_MILLIS
+    );
+
     // Create a token from a user id (simply encrypt it)
     public static String generateToken(long userId) {
         // We use a third-party library that creates standard JSON web tokens (JWT)
@@ -33,11 +50,59 @@ public class TokenUtils {
 
     // Parse the token, decrypt and return the id
     public static long parseToken(String token) throws SignatureException {
-        return Long.parseLong(Jwts.parser()
+        // A token that was already verified costs a single lookup in the cache
+        // We use a digest of the token as the key, so the cache does not keep the tokens themselves
+        String digest = DigestUtils.sha256Hex(token);
+        Long userId = VERIFIED_TOKENS.get(digest);
+        if (userId != null) {
+            return userId;
+        }
+
+        // Otherwise we check the signature and parse the claims (only a valid token reaches the cache)
+        Claims claims = Jwts.parser()
                 .setSigningKey(KEY)
                 .parseClaimsJws(token)
-                .getBody()
-                .getId());
+                .getBody();
+        userId = Long.parseLong(claims.getId());
+
+        // A token with an expiration date must not be accepted from the cache after it
+        long ttlMillis = VERIFIED_TOKENS_TTL_MILLIS;
+        Date expiration = claims.getExpiration();
+        if (expiration != null) {
+            long remainingMillis = expiration.getTime() - System.currentTimeMillis();
+            ttlMillis = ttlMillis > 0 ? Math.min(ttlMillis, remainingMillis) : remainingMillis;
+        }
+        if (expiration == null || ttlMillis > 0) {
+            VERIFIED_TOKENS.put(digest, userId, ttlMillis);
+        }
+        return userId;
+    }
+
+    // Sign some data given to a client (e.g. a continuation token), so we can check it was not forged when it comes back
+    // This is a HMAC-SHA256 with the same secret as the API tokens, encoded as a web safe string
+    public static String sign(String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(KEY.getEncoded(), "HmacSHA256"));
+            return Base64.encodeBase64URLSafeString(mac.doFinal(data.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            // Cannot happen, HmacSHA256 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Check the signature of some data, as returned by sign()
+    public static boolean verify(String data, String signature) {
+        // The comparison takes the same time whatever the first different byte, so the signature cannot be guessed byte by byte
+        return MessageDigest.isEqual(
+                sign(data).getBytes(StandardCharsets.UTF_8),
+                signature.getBytes(StandardCharsets.UTF_8)
+        );
+    }
+
+    // Get the statistics of the cache of verified tokens
+    public static CacheStats getCacheStats() {
+        return VERIFIED_TOKENS.getStats();
     }
 
-}
\ No newline at end of file
+}
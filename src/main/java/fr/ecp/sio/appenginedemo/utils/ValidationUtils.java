@@ -1,17 +1,23 @@
 package fr.ecp.sio.appenginedemo.utils;
 
-import com.google.api.client.http.HttpRequest;
+import com.google.appengine.api.urlfetch.FetchOptions;
 import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
 import com.google.appengine.api.urlfetch.HTTPResponse;
 import com.google.appengine.api.urlfetch.URLFetchService;
 import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
+import fr.ecp.sio.appenginedemo.model.CacheStats;
+import fr.ecp.sio.appenginedemo.model.Message;
 import org.apache.commons.validator.routines.EmailValidator;
 
-import javax.swing.*;
-import java.awt.*;
-import java.io.IOException;
-import java.net.URLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Some utils to validate user inputs.
@@ -23,6 +29,15 @@ public class ValidationUtils {
     private static final String LOGIN_PATTERN = "^[A-Za-z0-9_-]{4,12}$";
     private static final String PASSWORD_PATTERN = "^\\w{4,12}$";
 
+    // The maximum time we wait for a remote server when validating an image URL, in seconds
+    private static final double IMAGE_FETCH_DEADLINE = 5.0;
+
+    // The results of the image URL validations are cached, so the same URL is not fetched again and again.
+    // An invalid URL is remembered for a shorter time, as the remote image may be fixed.
+    private static final long VALID_IMAGE_TTL = TimeUnit.HOURS.toMillis(1);
+    private static final long INVALID_IMAGE_TTL = TimeUnit.MINUTES.toMillis(5);
+    private static final LruCache<String, Boolean> IMAGE_URLS = new LruCache<>("imageUrls", 1000, VALID_IMAGE_TTL);
+
     public static boolean validateLogin(String login) {
         return login != null && login.matches(LOGIN_PATTERN);
     }
@@ -31,6 +46,12 @@ public class ValidationUtils {
         return password != null && password.matches(PASSWORD_PATTERN);
     }
 
+    // A message must have a text, which is not only blank characters
+    // The same rule applies to a single message, to each message of an array, and to an edited message
+    public static boolean validateMessage(Message message) {
+        return message != null && message.text != null && !message.text.trim().isEmpty();
+    }
+
     public static boolean validateEmail(String email) {
         // Here we use a library from Apache Commons to do the validation
         return EmailValidator.getInstance(false).isValid(email);
@@ -38,28 +59,208 @@ public class ValidationUtils {
 
     // Just doing regex validation would not be enough here.
     // We have to check that URL actually exists and represents an image.
-    public static boolean validateImageUrl(String imageUrl){
-        if(imageUrl == null) return false;
+    public static boolean validateImageUrl(String imageUrl) {
+        try {
+            return validateImageUrlAsync(imageUrl).get();
+        } catch (InterruptedException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    // Start the validation of an image URL without waiting for the result.
+    // The remote server is called in the background, so several URLs can be validated at the same time:
+    // start all the validations first, then call get() on each of the returned futures.
+    public static Future<Boolean> validateImageUrlAsync(String imageUrl) {
+        if (imageUrl == null) {
+            return new ImmediateFuture(false);
+        }
+
+        Boolean cached = IMAGE_URLS.get(imageUrl);
+        if (cached != null) {
+            return new ImmediateFuture(cached);
+        }
 
         try {
-            URLFetchService fetcher = URLFetchServiceFactory.getURLFetchService();
+            // We only need the headers of the response, a HEAD request avoids downloading the whole image
             URL url = new URL(imageUrl);
-            HTTPResponse response = fetcher.fetch(url);
+            HTTPRequest request = new HTTPRequest(
+                    url,
+                    HTTPMethod.HEAD,
+                    FetchOptions.Builder.withDeadline(IMAGE_FETCH_DEADLINE).followRedirects()
+            );
+            return new ImageValidationFuture(imageUrl, url, URLFetchServiceFactory.getURLFetchService().fetchAsync(request));
+        } catch (MalformedURLException e) {
+            IMAGE_URLS.put(imageUrl, false, INVALID_IMAGE_TTL);
+            return new ImmediateFuture(false);
+        }
+    }
+
+    // Get the statistics of the cache of image URLs
+    public static CacheStats getImageUrlCacheStats() {
+        return IMAGE_URLS.getStats();
+    }
+
+    // Check that a response describes an image
+    private static boolean isImage(HTTPResponse response) {
+        if (response.getResponseCode() < 200 || response.getResponseCode() >= 300) {
+            return false;
+        }
+        for (HTTPHeader header : response.getHeaders()) {
+            if (header.getName().equalsIgnoreCase("Content-Type")) {
+                return header.getValue().startsWith("image/");
+            }
+        }
+        return false;
+    }
+
+    // Some servers don't accept HEAD requests: we fall back to a GET request for the first byte of the file only
+    // As the first request, it runs in the background
+    private static Future<HTTPResponse> fetchFirstByteAsync(URL imageUrl) {
+        URLFetchService fetcher = URLFetchServiceFactory.getURLFetchService();
+        HTTPRequest request = new HTTPRequest(
+                imageUrl,
+                HTTPMethod.GET,
+                FetchOptions.Builder.withDeadline(IMAGE_FETCH_DEADLINE).followRedirects()
+        );
+        request.setHeader(new HTTPHeader("Range", "bytes=0-0"));
+        return fetcher.fetchAsync(request);
+    }
+
+    // The servers that don't accept HEAD requests answer "Method Not Allowed" or "Not Implemented"
+    private static boolean isHeadRejected(HTTPResponse response) {
+        return response.getResponseCode() == 405 || response.getResponseCode() == 501;
+    }
+
+    // A future for a result that is already known (invalid or cached URL)
+    private static class ImmediateFuture implements Future<Boolean> {
+
+        private final boolean mResult;
+
+        private ImmediateFuture(boolean result) {
+            mResult = result;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public Boolean get() {
+            return mResult;
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit) {
+            return mResult;
+        }
+
+    }
 
-            String result = "";
+    // A future that turns the response of the remote server into the result of the validation, and caches it
+    // When the HEAD request is rejected, the GET request for the first byte is chained to it:
+    // it is started as soon as the rejection is seen (by isDone() or get()), and get() then waits for it
+    private static class ImageValidationFuture implements Future<Boolean> {
 
-            for(HTTPHeader header : response.getHeaders()) {
-                String headerName = header.getName();
-                String headerValue = header.getValue();
+        private final String mImageUrl;
+        private final URL mUrl;
+        private final Future<HTTPResponse> mResponse;
 
-                if(headerName.equals("Content-Type")) {
-                    return headerValue.startsWith("image/");
+        // The fallback request, only started if the HEAD request is rejected
+        private Future<HTTPResponse> mFallbackResponse;
+
+        private ImageValidationFuture(String imageUrl, URL url, Future<HTTPResponse> response) {
+            mImageUrl = imageUrl;
+            mUrl = url;
+            mResponse = response;
+        }
+
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (mFallbackResponse != null) {
+                mFallbackResponse.cancel(mayInterruptIfRunning);
+            }
+            return mResponse.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mResponse.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            if (!mResponse.isDone()) {
+                return false;
+            }
+            try {
+                // The first response is there, this does not wait
+                HTTPResponse response = mResponse.get();
+                return !isHeadRejected(response) || getFallbackResponse().isDone();
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                return true;
+            }
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException {
+            try {
+                HTTPResponse response = mResponse.get();
+                if (isHeadRejected(response)) {
+                    response = getFallbackResponse().get();
                 }
+                return validate(response);
+            } catch (ExecutionException e) {
+                return invalid();
             }
+        }
 
-            return false;
-        } catch (IOException e) {
+        @Override
+        public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            // The timeout covers both requests
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            try {
+                HTTPResponse response = mResponse.get(timeout, unit);
+                if (isHeadRejected(response)) {
+                    response = getFallbackResponse().get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                return validate(response);
+            } catch (ExecutionException e) {
+                return invalid();
+            }
+        }
+
+        // Start the fallback request the first time it is needed
+        private synchronized Future<HTTPResponse> getFallbackResponse() {
+            if (mFallbackResponse == null) {
+                mFallbackResponse = fetchFirstByteAsync(mUrl);
+            }
+            return mFallbackResponse;
+        }
+
+        private boolean validate(HTTPResponse response) {
+            if (!isImage(response)) {
+                return invalid();
+            }
+            IMAGE_URLS.put(mImageUrl, true);
+            return true;
+        }
+
+        private boolean invalid() {
+            IMAGE_URLS.put(mImageUrl, false, INVALID_IMAGE_TTL);
             return false;
         }
+
     }
+
 }
@@ -0,0 +1,173 @@
+package fr.ecp.sio.appenginedemo.api;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyService;
+import fr.ecp.sio.appenginedemo.data.UsersRepository;
+import fr.ecp.sio.appenginedemo.model.BatchResponse;
+import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.utils.TokenUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The requests sent at once: each one reaches the servlet of its path, as if it was sent alone,
+ * and the ones that change something are seen by the requests sent after them.
+ */
+public class BatchServletTest {
+
+    private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig()
+    );
+
+    private Closeable mSession;
+    private BatchServlet mServlet;
+    private User mUser;
+    private User mOther;
+
+    @Before
+    public void setUp() throws Exception {
+        mHelper.setUp();
+        mSession = ObjectifyService.begin();
+        mServlet = new BatchServlet();
+        mUser = createUser("batcher", "batcher@yopmail.com");
+        mOther = createUser("other", "other@yopmail.com");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSession.close();
+        mHelper.tearDown();
+    }
+
+    @Test
+    public void routesEachRequestToItsServlet() throws Exception {
+        List<BatchResponse> responses = post("["
+                + "{\"method\": \"GET\", \"path\": \"/user/" + mOther.id + "\"},"
+                + "{\"method\": \"GET\", \"path\": \"/user/me\"},"
+                + "{\"method\": \"GET\", \"path\": \"/nowhere\"}"
+                + "]");
+
+        assertEquals(3, responses.size());
+        assertEquals(200, responses.get(0).status);
+        assertEquals(mOther.id, responses.get(0).body.getAsJsonObject().get("id").getAsLong());
+        assertEquals(200, responses.get(1).status);
+        assertEquals(mUser.id, responses.get(1).body.getAsJsonObject().get("id").getAsLong());
+        assertError(responses.get(2), 404, "notFound");
+    }
+
+    @Test
+    public void rejectsTooManyRequests() throws Exception {
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < 21; i++) {
+            body.append(i > 0 ? "," : "").append("{\"method\": \"GET\", \"path\": \"/user/me\"}");
+        }
+        body.append("]");
+
+        try {
+            post(body.toString());
+            fail("21 requests were accepted");
+        } catch (ApiException e) {
+            assertEquals("tooManyRequests", e.getError().code);
+        }
+    }
+
+    @Test
+    public void rejectsTheAvatarsAndTheStreams() throws Exception {
+        List<BatchResponse> responses = post("["
+                + "{\"method\": \"PUT\", \"path\": \"/user/avatar\"},"
+                + "{\"method\": \"GET\", \"path\": \"/users?stream=true\"}"
+                + "]");
+
+        assertError(responses.get(0), 400, "unsupportedRequest");
+        assertError(responses.get(1), 400, "unsupportedRequest");
+    }
+
+    @Test
+    public void handlesTheWritesBeforeTheNextRequests() throws Exception {
+        List<BatchResponse> responses = post("["
+                + "{\"method\": \"GET\", \"path\": \"/user/me\"},"
+                + "{\"method\": \"POST\", \"path\": \"/user/me\", \"body\": {\"email\": \"renamed@yopmail.com\"}},"
+                + "{\"method\": \"GET\", \"path\": \"/user/me\"}"
+                + "]");
+
+        assertEquals("batcher@yopmail.com", responses.get(0).body.getAsJsonObject().get("email").getAsString());
+        assertEquals(200, responses.get(1).status);
+        assertEquals("renamed@yopmail.com", responses.get(2).body.getAsJsonObject().get("email").getAsString());
+    }
+
+    private static User createUser(String login, String email) throws Exception {
+        User user = new User();
+        user.id = UsersRepository.allocateNewId();
+        user.login = login;
+        user.email = email;
+        UsersRepository.createUser(user);
+        return user;
+    }
+
+    private List<BatchResponse> post(String body) throws Exception {
+        return mServlet.doPost(createRequest(body, "Bearer " + TokenUtils.generateToken(mUser.id)));
+    }
+
+    private static void assertError(BatchResponse response, int status, String code) {
+        assertEquals(status, response.status);
+        assertEquals(code, response.body.getAsJsonObject().get("code").getAsString());
+    }
+
+    // The batch request as sent by the container: only what the servlets read from it is available
+    private static HttpServletRequest createRequest(final String body, final String authorization) {
+        final Map<String, Object> attributes = new HashMap<>();
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "getMethod":
+                                return "POST";
+                            case "getReader":
+                                return new BufferedReader(new StringReader(body));
+                            case "getHeader":
+                                return "Authorization".equalsIgnoreCase((String) args[0]) ? authorization : null;
+                            case "getHeaderNames":
+                                return Collections.enumeration(Collections.singletonList("Authorization"));
+                            case "getHeaders":
+                                return Collections.enumeration("Authorization".equalsIgnoreCase((String) args[0])
+                                        ? Collections.singletonList(authorization)
+                                        : Collections.<String>emptyList());
+                            case "getAttribute":
+                                return attributes.get(args[0]);
+                            case "setAttribute":
+                                attributes.put((String) args[0], args[1]);
+                                return null;
+                            case "removeAttribute":
+                                attributes.remove(args[0]);
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                }
+        );
+    }
+
+}
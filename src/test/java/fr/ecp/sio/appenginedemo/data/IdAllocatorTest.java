@@ -0,0 +1,94 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import fr.ecp.sio.appenginedemo.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The requests of an instance take ids from the same allocator at the same time:
+ * no id may be given twice, even while the blocks are switched.
+ */
+public class IdAllocatorTest {
+
+    // A small block, so the threads switch blocks and reserve the next ones many times
+    private static final long BLOCK_SIZE = 10;
+
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 500;
+
+    private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig()
+    );
+
+    @Before
+    public void setUp() {
+        mHelper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.tearDown();
+    }
+
+    @Test
+    public void givesUniqueIdsAcrossBlocks() throws Exception {
+        final IdAllocator allocator = new IdAllocator(User.class, BLOCK_SIZE);
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        // The datastore stub is only available to the threads with the environment of the test
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        // All the threads start taking ids at the same time
+        final CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        ApiProxy.setEnvironmentForCurrentThread(environment);
+                        start.await();
+                        int duplicates = 0;
+                        for (int j = 0; j < IDS_PER_THREAD; j++) {
+                            long id = allocator.nextId();
+                            assertTrue("Invalid id " + id, id > 0);
+                            if (!ids.add(id)) {
+                                duplicates++;
+                            }
+                        }
+                        return duplicates;
+                    }
+                }));
+            }
+            start.countDown();
+
+            int duplicates = 0;
+            for (Future<Integer> result : results) {
+                duplicates += result.get();
+            }
+            assertEquals(0, duplicates);
+            assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
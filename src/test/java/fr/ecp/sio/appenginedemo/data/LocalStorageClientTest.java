@@ -0,0 +1,128 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The round trip of a file through the local storage, with the same guarantees as the Cloud Storage:
+ * a file is only visible, or replaced, once its stream is closed.
+ * The upload throughput is also measured, but only when asked, as it depends on the disk of the machine, e.g.
+ * mvn test -Dtest=LocalStorageClientTest -Dbenchmark=true
+ */
+public class LocalStorageClientTest {
+
+    // The size of a large avatar, before it is resized
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+
+    // The content is written by chunks, as the servlets copy the body of the request
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private static final int BENCHMARK_ROUNDS = 20;
+
+    private static final Logger LOGGER = Logger.getLogger(LocalStorageClientTest.class.getSimpleName());
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private LocalStorageClient mClient;
+    private byte[] mContent;
+
+    @Before
+    public void setUp() throws Exception {
+        mClient = new LocalStorageClient(mFolder.getRoot(), "http://localhost/files/");
+        mContent = new byte[FILE_SIZE];
+        new Random(42).nextBytes(mContent);
+    }
+
+    @Test
+    public void readsTheWrittenFile() throws Exception {
+        write("avatars/1.png", mContent);
+
+        assertTrue(mClient.exists("avatars/1.png"));
+        assertArrayEquals(mContent, read("avatars/1.png"));
+    }
+
+    @Test
+    public void showsTheFileOnlyWhenItIsClosed() throws Exception {
+        write("1.png", mContent);
+        byte[] replacement = Arrays.copyOf(mContent, 100);
+
+        OutputStream out = mClient.create("2.png", "image/png", null, true);
+        out.write(replacement);
+        assertFalse(mClient.exists("2.png"));
+        out.close();
+        assertTrue(mClient.exists("2.png"));
+
+        // A file being replaced keeps its previous content until the new one is closed
+        out = mClient.create("1.png", "image/png", null, true);
+        out.write(replacement);
+        assertArrayEquals(mContent, read("1.png"));
+        out.close();
+        assertArrayEquals(replacement, read("1.png"));
+    }
+
+    @Test
+    public void deletesTheFile() throws Exception {
+        write("1.png", mContent);
+
+        assertTrue(mClient.delete("1.png"));
+        assertFalse(mClient.exists("1.png"));
+        assertFalse(mClient.delete("1.png"));
+    }
+
+    @Test
+    public void measuresTheUploads() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        // The first rounds warm up the JIT and the file system cache, like in a running server
+        long bestWriteNanos = Long.MAX_VALUE;
+        long bestRoundTripNanos = Long.MAX_VALUE;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            String name = "file" + round + ".png";
+            long start = System.nanoTime();
+            write(name, mContent);
+            long written = System.nanoTime();
+            read(name);
+            long end = System.nanoTime();
+            bestWriteNanos = Math.min(bestWriteNanos, written - start);
+            bestRoundTripNanos = Math.min(bestRoundTripNanos, end - start);
+        }
+
+        LOGGER.info(String.format(
+                "File of %d KB: upload %.1f ms (%.1f MB/s), round trip %.1f ms",
+                FILE_SIZE / 1024,
+                bestWriteNanos / 1e6,
+                FILE_SIZE / 1024.0 / 1024.0 / (bestWriteNanos / 1e9),
+                bestRoundTripNanos / 1e6
+        ));
+    }
+
+    private void write(String name, byte[] content) throws Exception {
+        try (OutputStream out = mClient.create(name, "image/png", "public, max-age=31536000", true)) {
+            for (int offset = 0; offset < content.length; offset += CHUNK_SIZE) {
+                out.write(content, offset, Math.min(CHUNK_SIZE, content.length - offset));
+            }
+        }
+    }
+
+    private byte[] read(String name) throws Exception {
+        try (InputStream in = mClient.open(name)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+}
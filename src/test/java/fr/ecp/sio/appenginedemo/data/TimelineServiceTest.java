@@ -0,0 +1,172 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Ref;
+import fr.ecp.sio.appenginedemo.model.AuthorSummary;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The timelines merged when they are read: the order of the heap, the pages, and the signed continuation token.
+ */
+public class TimelineServiceTest {
+
+    private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig()
+    );
+
+    private Closeable mSession;
+    private long mReader;
+    private long mFollowed1;
+    private long mFollowed2;
+    private long mStranger;
+
+    @Before
+    public void setUp() throws Exception {
+        mHelper.setUp();
+        mSession = ObjectifyService.begin();
+        mReader = UsersRepository.allocateNewId();
+        mFollowed1 = UsersRepository.allocateNewId();
+        mFollowed2 = UsersRepository.allocateNewId();
+        mStranger = UsersRepository.allocateNewId();
+        UsersRepository.setUserFollowed(mReader, mFollowed1, true);
+        UsersRepository.setUserFollowed(mReader, mFollowed2, true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSession.close();
+        mHelper.tearDown();
+    }
+
+    @Test
+    public void mergesTheFollowedUsersByDate() throws Exception {
+        post(mFollowed1, "1", 1000);
+        post(mFollowed2, "2", 2000);
+        post(mFollowed1, "3", 3000);
+        post(mFollowed2, "4", 4000);
+        post(mFollowed1, "5", 5000);
+        post(mReader, "6", 6000);
+        post(mStranger, "7", 7000);
+
+        MessagesRepository.MessagesList page = TimelineService.getMergedTimeline(mReader, 10, null);
+
+        assertEquals(Arrays.asList("6", "5", "4", "3", "2", "1"), getTexts(page.messages));
+        // The page is not full, so all the sources are exhausted
+        assertNull(page.cursor);
+    }
+
+    @Test
+    public void readsEachMessageOnceAcrossPages() throws Exception {
+        // Many messages posted at the same date by several users, around the limits of the pages
+        Set<Long> posted = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            posted.add(post(mFollowed1, "a" + i, 1000).id);
+            posted.add(post(mFollowed2, "b" + i, 1000).id);
+        }
+        posted.add(post(mFollowed1, "c", 2000).id);
+        posted.add(post(mReader, "d", 500).id);
+
+        List<Message> messages = new ArrayList<>();
+        String cursor = null;
+        do {
+            MessagesRepository.MessagesList page = TimelineService.getMergedTimeline(mReader, 3, cursor);
+            messages.addAll(page.messages);
+            cursor = page.cursor;
+        } while (cursor != null);
+
+        Set<Long> read = new HashSet<>();
+        for (Message message : messages) {
+            assertTrue("Duplicate message " + message.text, read.add(message.id));
+        }
+        assertEquals(posted, read);
+        for (int i = 1; i < messages.size(); i++) {
+            assertFalse(messages.get(i).date.after(messages.get(i - 1).date));
+        }
+    }
+
+    @Test
+    public void rejectsATamperedToken() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            post(mFollowed1, "m" + i, 1000 * (i + 1));
+        }
+        String cursor = TimelineService.getMergedTimeline(mReader, 2, null).cursor;
+
+        // The token is valid for its owner
+        assertEquals(Collections.singletonList("m0"), getTexts(TimelineService.getMergedTimeline(mReader, 2, cursor).messages));
+
+        // The date of the watermark is moved, but the signature is kept
+        String tampered = "9" + cursor;
+        assertInvalidToken(mReader, tampered);
+        // The signature is changed
+        assertInvalidToken(mReader, cursor.substring(0, cursor.length() - 1) + (cursor.endsWith("A") ? "B" : "A"));
+        assertInvalidToken(mReader, "1000-1");
+        // The token of another user
+        assertInvalidToken(mStranger, cursor);
+    }
+
+    @Test
+    public void mergesEachMessageOnceInTheHybridTimeline() throws Exception {
+        // A message of an author who became a celebrity after it was fanned out is both in the timeline and in his own source
+        Message message = post(mFollowed1, "fannedOut", 1000);
+        TimelineRepository.addToTimelines(Collections.singletonList(mReader), message.id, message.date);
+        CelebritiesRepository.setCelebrity(mFollowed1, true);
+        post(mFollowed1, "celebrity", 2000);
+
+        MessagesRepository.MessagesList page = TimelineService.getHybridTimeline(mReader, 10, null);
+
+        assertEquals(Arrays.asList("celebrity", "fannedOut"), getTexts(page.messages));
+    }
+
+    private Message post(long userId, String text, long date) {
+        Message message = new Message();
+        message.text = text;
+        message.date = new Date(date);
+        message.user = Ref.create(Key.create(User.class, userId));
+        message.author = new AuthorSummary();
+        message.author.id = userId;
+        MessagesRepository.insertMessage(message);
+        return message;
+    }
+
+    private static List<String> getTexts(List<Message> messages) {
+        List<String> texts = new ArrayList<>();
+        for (Message message : messages) {
+            texts.add(message.text);
+        }
+        return texts;
+    }
+
+    private static void assertInvalidToken(long userId, String cursor) {
+        try {
+            TimelineService.getMergedTimeline(userId, 2, cursor);
+            fail("The token " + cursor + " was accepted");
+        } catch (DataException e) {
+            assertEquals("invalidContinuationToken", e.getError().code);
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package fr.ecp.sio.appenginedemo.data;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.ObjectifyService;
+import fr.ecp.sio.appenginedemo.model.User;
+import fr.ecp.sio.appenginedemo.model.UserEmail;
+import fr.ecp.sio.appenginedemo.model.UserLogin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Two users registered before the lookup entities existed may have logins or emails that differ only in case.
+ * They share the same lookup entity, which is reserved by only one of them: the other one must never delete it.
+ */
+public class UsersRepositoryTest {
+
+    private final LocalServiceTestHelper mHelper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+            new LocalMemcacheServiceTestConfig()
+    );
+
+    private Closeable mSession;
+    private User mOwner;
+    private User mOther;
+
+    @Before
+    public void setUp() throws Exception {
+        mHelper.setUp();
+        mSession = ObjectifyService.begin();
+        mOwner = createLegacyUser(UsersRepository.allocateNewId(), "Bird", "Bird@yopmail.com");
+        mOther = createLegacyUser(UsersRepository.allocateNewId(), "bird", "bird@yopmail.com");
+        // The first user gets the lookup entities, the second one keeps finding himself with a query on his exact values
+        UsersRepository.backfillLookups(10, null);
+        assertReservedByOwner();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSession.close();
+        mHelper.tearDown();
+    }
+
+    @Test
+    public void keepsTheLookupsOfAnotherUserOnUpdate() throws Exception {
+        String previousLogin = mOther.login;
+        String previousEmail = mOther.email;
+        mOther.login = "otherBird";
+        mOther.email = "otherbird@yopmail.com";
+        UsersRepository.updateUser(mOther, previousLogin, previousEmail);
+
+        assertReservedByOwner();
+        assertEquals(mOther.id, UsersRepository.getUserByLogin("otherBird").id);
+    }
+
+    @Test
+    public void keepsTheLookupsOfAnotherUserOnDelete() throws Exception {
+        UsersRepository.deleteUser(mOther.id);
+
+        assertReservedByOwner();
+    }
+
+    @Test
+    public void deletesItsOwnLookups() throws Exception {
+        UsersRepository.deleteUser(mOwner.id);
+
+        assertEquals(null, ObjectifyService.ofy().load().type(UserLogin.class).id("bird").now());
+        assertEquals(null, ObjectifyService.ofy().load().type(UserEmail.class).id("bird@yopmail.com").now());
+    }
+
+    @Test
+    public void reservesAnEmailThatWasMissing() throws Exception {
+        User user = createLegacyUser(UsersRepository.allocateNewId(), "quiet", null);
+        user.email = "quiet@yopmail.com";
+        UsersRepository.updateUser(user, "quiet", null);
+
+        assertEquals(user.id, UsersRepository.getUserByEmail("Quiet@yopmail.com").id);
+    }
+
+    private void assertReservedByOwner() {
+        UserLogin userLogin = ObjectifyService.ofy().load().type(UserLogin.class).id("bird").now();
+        assertNotNull(userLogin);
+        assertEquals(mOwner.id, userLogin.userId);
+        UserEmail userEmail = ObjectifyService.ofy().load().type(UserEmail.class).id("bird@yopmail.com").now();
+        assertNotNull(userEmail);
+        assertEquals(mOwner.id, userEmail.userId);
+    }
+
+    // A user saved without his lookup entities, as before they existed
+    private static User createLegacyUser(long id, String login, String email) {
+        User user = new User();
+        user.id = id;
+        user.login = login;
+        user.email = email;
+        ObjectifyService.ofy().save().entity(user).now();
+        return user;
+    }
+
+}
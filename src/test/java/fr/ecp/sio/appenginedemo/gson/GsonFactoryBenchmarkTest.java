@@ -0,0 +1,133 @@
+package fr.ecp.sio.appenginedemo.gson;
+
+import com.google.gson.Gson;
+import fr.ecp.sio.appenginedemo.model.AuthorSummary;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
+import org.apache.commons.io.output.NullWriter;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the time and the memory needed to write a page of messages and a page of users,
+ * with the explicit adapters of GsonFactory and with reflection (see GsonFactoryTest).
+ * The timings depend on the machine and its load, so they are only reported in the log;
+ * the adapters must never allocate more than reflection, which does not depend on the machine.
+ * It only runs when asked, e.g.
+ * mvn test -Dtest=GsonFactoryBenchmarkTest -Dbenchmark=true
+ */
+public class GsonFactoryBenchmarkTest {
+
+    // The size of a full page of the API (see Pagination)
+    private static final int PAGE_SIZE = 100;
+
+    // The JIT compiles the code of both Gson instances before anything is measured
+    private static final int WARMUP_ITERATIONS = 5000;
+
+    // Each measure writes the page this number of times, and the best of the rounds is kept
+    private static final int ITERATIONS = 5000;
+    private static final int ROUNDS = 5;
+
+    private static final Logger LOGGER = Logger.getLogger(GsonFactoryBenchmarkTest.class.getSimpleName());
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    @Test
+    public void writeMessages() {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            Message message = GsonFactoryTest.createMessage();
+            message.id += i;
+            message.author = new AuthorSummary(GsonFactoryTest.createUser());
+            messages.add(message);
+        }
+        compare("messages", messages);
+    }
+
+    @Test
+    public void writeUsers() {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < PAGE_SIZE; i++) {
+            User user = GsonFactoryTest.createUser();
+            user.id += i;
+            users.add(user);
+        }
+        compare("users", users);
+    }
+
+    private static void compare(String name, List<?> page) {
+        Gson adapters = GsonFactory.getGson();
+        write(GsonFactoryTest.REFLECTIVE_GSON, page, WARMUP_ITERATIONS);
+        write(adapters, page, WARMUP_ITERATIONS);
+
+        Measure reflection = measure(GsonFactoryTest.REFLECTIVE_GSON, page);
+        Measure explicit = measure(adapters, page);
+        // The measures are reported, e.g. to compare two versions of an adapter on the same machine
+        String measures = String.format(
+                "Page of %d %s: reflection %.1f us, %d bytes | adapters %.1f us, %d bytes",
+                PAGE_SIZE, name,
+                reflection.nanos / 1000.0, reflection.bytes,
+                explicit.nanos / 1000.0, explicit.bytes
+        );
+        LOGGER.info(measures);
+        // The allocated memory is only known on HotSpot
+        if (explicit.bytes >= 0) {
+            assertTrue(measures, explicit.bytes <= reflection.bytes);
+        }
+    }
+
+    // The time and the allocated memory to write the page once, the best of several rounds for each
+    private static Measure measure(Gson gson, List<?> page) {
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long bytes = getAllocatedBytes();
+            long start = System.nanoTime();
+            write(gson, page, ITERATIONS);
+            bestNanos = Math.min(bestNanos, (System.nanoTime() - start) / ITERATIONS);
+            bestBytes = Math.min(bestBytes, bytes >= 0 ? (getAllocatedBytes() - bytes) / ITERATIONS : -1);
+        }
+        return new Measure(bestNanos, bestBytes);
+    }
+
+    // The JSON is written to a writer that discards it, as the servlets write it to the response
+    private static void write(Gson gson, List<?> page, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            gson.toJson(page, NullWriter.NULL_WRITER);
+        }
+    }
+
+    // The memory allocated by the current thread so far, or -1 if the JVM cannot tell (only HotSpot can)
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static class Measure {
+
+        private final long nanos;
+        private final long bytes;
+
+        private Measure(long nanos, long bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+
+    }
+
+}
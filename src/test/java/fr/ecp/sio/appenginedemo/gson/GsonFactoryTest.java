@@ -0,0 +1,180 @@
+package fr.ecp.sio.appenginedemo.gson;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Ref;
+import fr.ecp.sio.appenginedemo.model.AuthorSummary;
+import fr.ecp.sio.appenginedemo.model.Avatar;
+import fr.ecp.sio.appenginedemo.model.Error;
+import fr.ecp.sio.appenginedemo.model.Message;
+import fr.ecp.sio.appenginedemo.model.User;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The explicit adapters of GsonFactory replace the reflection of Gson: they must read and write the same JSON.
+ * The reference is a Gson configured as GsonFactory was before the adapters were added.
+ * The JSON trees are compared, so the order of the fields does not matter.
+ */
+public class GsonFactoryTest {
+
+    // Also used by GsonFactoryBenchmarkTest
+    static final Gson REFLECTIVE_GSON = new GsonBuilder()
+            .disableHtmlEscaping()
+            .registerTypeAdapterFactory(new RefAdapterFactory())
+            .setDateFormat(GsonFactory.ISO_DATE_FORMAT)
+            .create();
+
+    private static final JsonParser PARSER = new JsonParser();
+
+    @Test
+    public void writesUserAsReflection() {
+        User user = createUser();
+        assertSameJson(REFLECTIVE_GSON.toJson(user), GsonFactory.getGson().toJson(user));
+    }
+
+    @Test
+    public void writesUserWithNullFieldsAsReflection() {
+        User user = new User();
+        user.id = 42;
+        user.login = "user1";
+        assertSameJson(REFLECTIVE_GSON.toJson(user), GsonFactory.getGson().toJson(user));
+    }
+
+    @Test
+    public void writesEscapedStringsAsReflection() {
+        User user = createUser();
+        user.login = "<b>\"quoted\"</b> & été\n";
+        // The strings themselves are compared: the fields are written in the order of their declaration, as by reflection
+        assertEquals(REFLECTIVE_GSON.toJson(user), GsonFactory.getGson().toJson(user));
+    }
+
+    @Test
+    public void readsUserAsReflection() {
+        String json = REFLECTIVE_GSON.toJson(createUser());
+        User expected = REFLECTIVE_GSON.fromJson(json, User.class);
+        User actual = GsonFactory.getGson().fromJson(json, User.class);
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.login, actual.login);
+        assertEquals(expected.avatar, actual.avatar);
+        assertEquals(expected.avatarSizes, actual.avatarSizes);
+        assertEquals(expected.coverPicture, actual.coverPicture);
+        assertEquals(expected.email, actual.email);
+        assertEquals(expected.password, actual.password);
+    }
+
+    @Test
+    public void readsUnknownFieldsAsReflection() {
+        String json = "{\"id\":3,\"login\":\"user3\",\"unknown\":{\"nested\":[1,2]},\"email\":null}";
+        User expected = REFLECTIVE_GSON.fromJson(json, User.class);
+        User actual = GsonFactory.getGson().fromJson(json, User.class);
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.login, actual.login);
+        assertNull(actual.email);
+    }
+
+    @Test
+    public void writesAvatarAsReflection() {
+        Avatar avatar = new Avatar("http://localhost:8080/storage/abc.jpg");
+        avatar.sizes = createSizes();
+        assertSameJson(REFLECTIVE_GSON.toJson(avatar), GsonFactory.getGson().toJson(avatar));
+    }
+
+    @Test
+    public void writesErrorAsReflection() {
+        Error error = new Error();
+        error.status = 400;
+        error.code = "invalidLogin";
+        error.message = "Login did not match the specs";
+        assertSameJson(REFLECTIVE_GSON.toJson(error), GsonFactory.getGson().toJson(error));
+    }
+
+    @Test
+    public void writesMessageWithItsAuthorCopy() {
+        Message message = createMessage();
+        message.author = new AuthorSummary(createUser());
+
+        // The date is written as before, the copy of the author is written in place of the referenced user
+        JsonObject expected = PARSER.parse(REFLECTIVE_GSON.toJson(message)).getAsJsonObject();
+        expected.remove("author");
+        expected.add("user", authorJson(createUser()));
+        assertSameJson(expected.toString(), GsonFactory.getGson().toJson(message));
+    }
+
+    @Test
+    public void writesLegacyMessageWithTheIdOfItsAuthorOnly() throws Exception {
+        // A datastore key needs the environment of an App Engine request, and a Ref<> the Objectify session
+        // Nothing is read from the datastore
+        LocalServiceTestHelper helper = new LocalServiceTestHelper();
+        helper.setUp();
+        Closeable session = ObjectifyService.begin();
+        try {
+            Message message = createMessage();
+            User user = createUser();
+            // The author is never loaded while writing: the repositories set the copy of the legacy messages they return
+            message.user = Ref.create(Key.create(User.class, user.id));
+
+            JsonObject expected = new JsonObject();
+            expected.addProperty("id", user.id);
+            JsonObject json = PARSER.parse(GsonFactory.getGson().toJson(message)).getAsJsonObject();
+            assertEquals(expected, json.get("user"));
+        } finally {
+            session.close();
+            helper.tearDown();
+        }
+    }
+
+    private static void assertSameJson(String expected, String actual) {
+        assertEquals(PARSER.parse(expected), PARSER.parse(actual));
+    }
+
+    private static JsonElement authorJson(User user) {
+        JsonObject author = new JsonObject();
+        author.addProperty("id", user.id);
+        author.addProperty("login", user.login);
+        author.addProperty("avatar", user.avatar);
+        return author;
+    }
+
+    static User createUser() {
+        User user = new User();
+        user.id = 1000001;
+        user.login = "user1";
+        user.avatar = "http://localhost:8080/storage/abc.jpg";
+        user.avatarSizes = createSizes();
+        user.coverPicture = "";
+        user.email = "user1@yopmail.com";
+        user.password = "0b14d501a594442a01c6859541bcb3e8164d183d32937b851835442f69d5c94e";
+        return user;
+    }
+
+    private static Map<String, String> createSizes() {
+        Map<String, String> sizes = new LinkedHashMap<>();
+        sizes.put("48", "http://localhost:8080/storage/abc-48.jpg");
+        sizes.put("128", "http://localhost:8080/storage/abc-128.jpg");
+        return sizes;
+    }
+
+    static Message createMessage() {
+        Message message = new Message();
+        message.id = 5000001L;
+        message.text = "Hello \"birds\" <3";
+        // A whole number of seconds, as the date format has no milliseconds
+        message.date = new Date(1450000000000L);
+        return message;
+    }
+
+}